@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import art.DataContent;
+import art.Empty;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.openjdk.jmh.annotations.*;
+import org.sireum.hamr.inspector.common.Msg;
+import org.sireum.hamr.inspector.services.Session;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the message cache ({@link SegmentedMsgCache}) and the parse cache under concurrent readers, with and
+ * without a concurrent writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+    private static final DataContent EMPTY = Empty.apply();
+
+    private static final int SESSIONS = 4;
+
+    private static final int DISTINCT_PAYLOADS = 4096;
+
+    /**
+     * The number of messages cached per session.
+     */
+    @Param({"200000"})
+    public int messagesPerSession;
+
+    private SegmentedMsgCache msgCache;
+
+    private Cache<ContentKey, DataContent> parseCache;
+
+    private Session[] sessions;
+
+    private long firstUid;
+
+    private String[] payloads;
+
+    private ContentKey[] payloadKeys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        msgCache = new SegmentedMsgCache(ServiceCaches.DEFAULT_MAXIMUM_WEIGHT, ServiceCaches.EXPIRE_AFTER_ACCESS);
+        sessions = new Session[SESSIONS];
+        firstUid = StreamIds.pack(System.currentTimeMillis() + "-0");
+
+        for (int s = 0; s < SESSIONS; s++) {
+            sessions[s] = new Session("bench-" + s);
+            for (int i = 0; i < messagesPerSession; i++) {
+                final long uid = uidOf(i);
+                msgCache.put(sessions[s], uid, new Msg(null, null, null, null, EMPTY, i, uid));
+            }
+        }
+
+        parseCache = Caffeine.newBuilder()
+                .<ContentKey, DataContent>weigher((key, value) -> key.weight())
+                .maximumWeight(64_000_000)
+                .recordStats()
+                .build();
+        payloads = new String[DISTINCT_PAYLOADS];
+        payloadKeys = new ContentKey[DISTINCT_PAYLOADS];
+        for (int i = 0; i < DISTINCT_PAYLOADS; i++) {
+            payloads[i] = RecordDecoderBenchmark.payload(i, 512);
+            payloadKeys[i] = ContentKey.of(payloads[i]);
+            parseCache.put(payloadKeys[i], EMPTY);
+        }
+    }
+
+    /**
+     * Roughly ten messages per millisecond, like a busy session.
+     */
+    private long uidOf(int i) {
+        return firstUid + ((long) (i / 10) << 21) + (i % 10);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Msg msgCacheRead() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        return msgCache.get(sessions[random.nextInt(SESSIONS)], uidOf(random.nextInt(messagesPerSession)));
+    }
+
+    @Benchmark
+    @Group("msgCacheReadWrite")
+    @GroupThreads(3)
+    public Msg msgCacheMixedRead() {
+        return msgCacheRead();
+    }
+
+    @Benchmark
+    @Group("msgCacheReadWrite")
+    @GroupThreads(1)
+    public void msgCacheMixedWrite() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int i = random.nextInt(messagesPerSession);
+        msgCache.put(sessions[random.nextInt(SESSIONS)], uidOf(i), new Msg(null, null, null, null, EMPTY, i, uidOf(i)));
+    }
+
+    /**
+     * A parse cache lookup including hashing the payload, which is what each decoded record pays.
+     */
+    @Benchmark
+    @Threads(4)
+    public DataContent parseCacheRead() {
+        final String payload = payloads[ThreadLocalRandom.current().nextInt(DISTINCT_PAYLOADS)];
+        return parseCache.get(ContentKey.of(payload), key -> EMPTY);
+    }
+
+    /**
+     * A parse cache lookup with a precomputed key, isolating the cost of the cache itself.
+     */
+    @Benchmark
+    @Threads(4)
+    public DataContent parseCacheReadPrehashed() {
+        return parseCache.getIfPresent(payloadKeys[ThreadLocalRandom.current().nextInt(DISTINCT_PAYLOADS)]);
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.ReactiveSubscription;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ReactiveValueOperations;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-process stand-in for redis that supports the handful of key and value commands used by
+ * {@link SessionServiceRedis}. Every other command fails with an {@link UnsupportedOperationException}.
+ *
+ * Results are computed synchronously on the subscribing thread, as if every reply arrived instantly, so benchmarks
+ * using it measure the service's own overhead per command without any network latency or thread hand-off.
+ */
+final class InMemoryRedisTemplate extends ReactiveStringRedisTemplate {
+
+    private final Map<String, String> values = new ConcurrentHashMap<>();
+
+    private final ReactiveValueOperations<String, String> valueOps;
+
+    InMemoryRedisTemplate() {
+        super(unsupported(ReactiveRedisConnectionFactory.class));
+        this.valueOps = valueOperations();
+    }
+
+    void set(String key, String value) {
+        values.put(key, value);
+    }
+
+    @Override
+    public Mono<Boolean> hasKey(String key) {
+        return Mono.fromSupplier(() -> values.containsKey(key));
+    }
+
+    @Override
+    public ReactiveValueOperations<String, String> opsForValue() {
+        return valueOps;
+    }
+
+    @Override
+    public Flux<? extends ReactiveSubscription.Message<String, String>> listenToChannel(String... channels) {
+        return Flux.never();
+    }
+
+    @SuppressWarnings("unchecked")
+    private ReactiveValueOperations<String, String> valueOperations() {
+        return (ReactiveValueOperations<String, String>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ReactiveValueOperations.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "get":
+                            return Mono.fromSupplier(() -> values.get((String) args[0]));
+                        case "multiGet":
+                            return Mono.fromSupplier(() -> {
+                                final List<String> result = new ArrayList<>();
+                                for (Object key : (Collection<?>) args[0]) {
+                                    result.add(values.get((String) key));
+                                }
+                                return result;
+                            });
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T unsupported(Class<T> type) {
+        return (T) Proxy.newProxyInstance(InMemoryRedisTemplate.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import art.DataContent;
+import art.Empty;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sireum.hamr.inspector.common.Msg;
+import org.sireum.hamr.inspector.services.Session;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the per-record cost of {@link RecordDecoder}, which is the work RECORD_TRANSFORMER does for every message.
+ *
+ * The payload deserializer is a stand-in that returns {@link Empty} (the real one comes from the generated
+ * {@link org.sireum.hamr.inspector.common.InspectionBlueprint}), so this measures the service's own overhead: field
+ * parsing, id packing, content hashing and both caches. Payload size and the number of distinct payloads control
+ * how often the parse cache hits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordDecoderBenchmark {
+
+    private static final int BATCH_SIZE = 1024;
+
+    private static final DataContent EMPTY = Empty.apply();
+
+    private static final AtomicLong SESSION_COUNTER = new AtomicLong();
+
+    /**
+     * Approximate size of each record's "data" field in characters.
+     */
+    @Param({"128", "4096"})
+    public int payloadSize;
+
+    /**
+     * The number of distinct payloads in a batch, where 0 means every payload is distinct.
+     */
+    @Param({"1", "64", "0"})
+    public int distinctPayloads;
+
+    private List<MapRecord<String, String, String>> records;
+
+    private RecordDecoder decoder;
+
+    private Session cachedSession;
+
+    /**
+     * The sessions created by {@link #decodeUncached} during the current iteration, whose cached messages are removed
+     * after each iteration so the heap does not grow over the course of a trial.
+     */
+    private final List<Session> uncachedSessions = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final Cache<ContentKey, DataContent> parseCache = Caffeine.newBuilder()
+                .<ContentKey, DataContent>weigher((key, value) -> key.weight())
+                .maximumWeight(64_000_000)
+                .recordStats()
+                .build();
+
+        decoder = new RecordDecoder(parseCache, json -> EMPTY,
+                (srcId, dstId, dataContent, timestamp, uid) -> new Msg(null, null, null, null, dataContent, timestamp, uid));
+
+        final long startTime = System.currentTimeMillis();
+        records = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            final int variant = distinctPayloads == 0 ? i : i % distinctPayloads;
+            final Map<String, String> fields = Map.of(
+                    "timestamp", Long.toString(startTime + i),
+                    "src", Integer.toString(i % 16),
+                    "dst", Integer.toString(16 + i % 16),
+                    "data", payload(variant, payloadSize));
+            records.add(MapRecord.create("bench-stream", fields).withId(RecordId.of(startTime + i, 0)));
+        }
+
+        cachedSession = new Session("bench-cached");
+        decodeBatch(cachedSession, null);
+    }
+
+    /**
+     * Every record was decoded before, so every lookup hits the message cache.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void decodeCached(Blackhole blackhole) {
+        decodeBatch(cachedSession, blackhole);
+    }
+
+    /**
+     * Every batch is decoded for a new session, so every record misses the message cache and the parse cache only
+     * hits for repeated payloads.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void decodeUncached(Blackhole blackhole) {
+        final Session session = new Session("bench-" + SESSION_COUNTER.incrementAndGet());
+        uncachedSessions.add(session);
+        decodeBatch(session, blackhole);
+    }
+
+    @TearDown(Level.Iteration)
+    public void invalidateUncached() {
+        uncachedSessions.forEach(ServiceCaches::invalidate);
+        uncachedSessions.clear();
+    }
+
+    private void decodeBatch(Session session, Blackhole blackhole) {
+        for (MapRecord<String, String, String> record : records) {
+            final StreamMsg msg = decoder.decode(0, session, record);
+            if (blackhole != null) {
+                blackhole.consume(msg);
+            }
+        }
+    }
+
+    static String payload(int variant, int size) {
+        final StringBuilder builder = new StringBuilder(size + 64);
+        builder.append("{\"type\":\"Base_Types.Integer_32_Payload\",\"variant\":").append(variant).append(",\"values\":[");
+        int i = 0;
+        while (builder.length() < size) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append((variant * 31 + i++) % 100_000);
+        }
+        return builder.append("]}").toString();
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.sireum.hamr.inspector.services.Session;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures listing all sessions with {@link SessionServiceRedis#sessions()} against an {@link InMemoryRedisTemplate}.
+ * Since the stand-in has no network latency this measures the per-session overhead of the service itself, which is
+ * multiplied by the real round trip count in production. {@link #discovery()} measures a full rediscovery, while
+ * {@link #sessions()} measures listing from the already seeded session registry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionsBenchmark {
+
+    /**
+     * The number of sessions ever created (the value of "numSessions"). Every tenth session is deleted.
+     */
+    @Param({"1000", "50000"})
+    public int numSessions;
+
+    private SessionServiceRedis sessionService;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        final InMemoryRedisTemplate template = new InMemoryRedisTemplate();
+        template.set("numSessions", Integer.toString(numSessions));
+        for (int n = 1; n <= numSessions; n++) {
+            if (n % 10 != 0) {
+                template.set(n + "-start", Long.toString(n * 1000L));
+                template.set(n + "-stop", Long.toString(n * 1000L + 500));
+                template.set(n + "-stream", "");
+            }
+        }
+
+        final RedisServiceMetrics metrics =
+                new RedisServiceMetrics(new StaticListableBeanFactory().getBeanProvider(MeterRegistry.class));
+        sessionService = new SessionServiceRedis(template, metrics);
+
+        final Method postConstruct = SessionServiceRedis.class.getDeclaredMethod("postConstruct");
+        postConstruct.setAccessible(true);
+        postConstruct.invoke(sessionService);
+    }
+
+    @Benchmark
+    public List<Session> sessions() {
+        return sessionService.sessions().collectList().block();
+    }
+
+    @Benchmark
+    public List<Session> discovery() {
+        return sessionService.refreshSessions().thenMany(sessionService.sessions()).collectList().block();
+    }
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import art.Empty;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.extern.slf4j.Slf4j;
+import org.sireum.hamr.inspector.common.InspectionBlueprint;
+import org.sireum.hamr.inspector.services.RecordId;
+import org.sireum.hamr.inspector.services.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes synthetic sessions to redis in the same schema as the Inspector ("numSessions", "n-start", "n-stop",
+ * "n-stream" and the events of "inspector-channel") while following them with {@link MsgServiceRedis}, to measure the
+ * services under sustained load before an upgrade.
+ *
+ * Only enabled with "inspector.redis.soak.enabled=true", and only meant to be run against a local, disposable redis.
+ * For the configured duration every session receives messages at the configured rate, each message's delivery
+ * latency (from just before it is written until it is delivered by a live subscription and decoded) is recorded, and
+ * a report with latency percentiles, heap usage and GC activity is logged periodically. Once a session stops, it is
+ * replayed in full to measure replay throughput.
+ *
+ * Like the benchmarks, the harness is only compiled by the "benchmark" profile and is not part of the packaged
+ * module. It is picked up by component scanning when an application is started with the profile's test classpath.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "inspector.redis.soak", name = "enabled", havingValue = "true")
+public class SoakHarness {
+
+    /**
+     * Messages are written in batches, one batch per tick, so high rates don't need a timer per message.
+     */
+    private static final Duration TICK = Duration.ofMillis(10);
+
+    /**
+     * Adds the messages in ARGV to the stream in KEYS[1], in order. Each message is written as its id, timestamp, src,
+     * dst and data. A batch is added by a single script so its explicit, increasing ids are always added in order.
+     */
+    private static final RedisScript<Long> WRITE_SCRIPT = RedisScript.of(String.join("\n",
+            "for i = 1, #ARGV, 5 do",
+            "  redis.call('XADD', KEYS[1], ARGV[i], 'timestamp', ARGV[i + 1], 'src', ARGV[i + 2],",
+            "      'dst', ARGV[i + 3], 'data', ARGV[i + 4])",
+            "end",
+            "return #ARGV / 5"), Long.class);
+
+    private final ReactiveStringRedisTemplate template;
+
+    private final MsgServiceRedis msgService;
+
+    private final InspectionBlueprint inspectionBlueprint;
+
+    private final RedisServiceMetrics metrics;
+
+    @Value("${inspector.redis.soak.sessions:1}")
+    private int sessions;
+
+    /**
+     * The number of messages written per second to each session.
+     */
+    @Value("${inspector.redis.soak.rate:1000}")
+    private int rate;
+
+    /**
+     * The approximate size in bytes of each message's "data" field.
+     */
+    @Value("${inspector.redis.soak.payload-size:256}")
+    private int payloadSize;
+
+    @Value("${inspector.redis.soak.duration:10m}")
+    private Duration duration;
+
+    @Value("${inspector.redis.soak.report-interval:10s}")
+    private Duration reportInterval;
+
+    /**
+     * The src and dst port ids of written messages, which must be valid ports of the inspected system.
+     */
+    @Value("${inspector.redis.soak.port-ids:0,1}")
+    private int[] portIds;
+
+    private Timer deliveryLatency;
+
+    /**
+     * The send time (in nanos) of every written but not yet delivered message, by session and uid. Sessions are
+     * removed once they stop.
+     */
+    private final Map<Session, Map<Long, Long>> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private Disposable run;
+
+    public SoakHarness(ReactiveStringRedisTemplate template, MsgServiceRedis msgService, InspectionBlueprint inspectionBlueprint, RedisServiceMetrics metrics) {
+        this.template = template;
+        this.msgService = msgService;
+        this.inspectionBlueprint = inspectionBlueprint;
+        this.metrics = metrics;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        deliveryLatency = Timer.builder("inspector.redis.soak.delivery")
+                .description("Latency from writing a synthetic message until a live subscriber received it")
+                .publishPercentiles(0.5, 0.9, 0.99, 0.999)
+                .register(metrics.registry());
+
+        log.warn("Starting soak run: {} session(s) at {} msg/s with {} byte payloads for {}.",
+                sessions, rate, payloadSize, duration);
+
+        final Disposable reports = Flux.interval(reportInterval, reportInterval)
+                .subscribe(tick -> report());
+
+        run = Flux.range(0, sessions)
+                .flatMap(any -> runSession(), sessions)
+                .doFinally(signal -> {
+                    reports.dispose();
+                    report();
+                    log.info("Soak run finished with {}.", signal);
+                })
+                .subscribe(
+                        log::info,
+                        e -> log.error("Soak run failed.", e));
+    }
+
+    @PreDestroy
+    private void stop() {
+        if (run != null) {
+            run.dispose();
+        }
+    }
+
+    private Mono<String> runSession() {
+        return template.opsForValue().increment("numSessions").flatMap(number -> {
+            final Session session = new Session(Long.toString(number));
+            final String key = number + "-stream";
+            final String[] payloads = payloads();
+            final IdGenerator ids = new IdGenerator();
+            final Map<Long, Long> sent = new ConcurrentHashMap<>();
+            pending.put(session, sent);
+
+            final Mono<Void> start = template.opsForValue().set(number + "-start", Long.toString(System.currentTimeMillis()))
+                    .then(template.convertAndSend("inspector-channel", number + "-start"))
+                    .then();
+
+            // each tick writes the messages due by the end of that tick that have not been written yet, so rates that
+            // are not a multiple of the tick rate are met on average, and ticks skipped while writing fell behind are
+            // made up by the next tick instead of being lost
+            final long ticks = duration.toMillis() / TICK.toMillis();
+            final AtomicLong scheduled = new AtomicLong();
+            final Mono<Void> write = Flux.interval(TICK)
+                    .take(ticks)
+                    .onBackpressureLatest()
+                    .concatMap(tick -> {
+                        final long due = (tick + 1) * rate * TICK.toMillis() / 1000;
+                        final long from = scheduled.getAndSet(due);
+                        return due > from ? writeBatch(key, sent, ids, payloads, from, due) : Mono.<Void>empty();
+                    }, 1)
+                    .then();
+
+            final Mono<Void> stop = Mono.defer(() -> {
+                final Map<String, String> fields = new LinkedHashMap<>(4);
+                fields.put("stop", "soak run finished");
+                fields.put("timestamp", Long.toString(System.currentTimeMillis()));
+                return template.opsForStream().add(key, fields)
+                        .then(template.opsForValue().set(number + "-stop", Long.toString(System.currentTimeMillis())))
+                        .then(template.convertAndSend("inspector-channel", number + "-stop"))
+                        .then();
+            });
+
+            // the live subscriber completes when it reads the "stop" record written after the last message
+            final Mono<Void> follow = msgService.liveHeaders(session, Range.unbounded())
+                    .doOnNext(header -> delivered(sent, header))
+                    .then();
+
+            return start
+                    .then(Mono.when(follow, write.then(stop)))
+                    .doFinally(signal -> {
+                        pending.remove(session);
+                        if (!sent.isEmpty()) {
+                            log.warn("{} messages written to session {} were never delivered.", sent.size(), number);
+                        }
+                    })
+                    .then(measureReplay(session));
+        });
+    }
+
+    /**
+     * Writes the messages with the indices {@code from} (inclusive) to {@code to} (exclusive) of a session. A batch that
+     * cannot be written is counted as failed without ending the run.
+     */
+    private Mono<Void> writeBatch(String key, Map<Long, Long> sent, IdGenerator ids, String[] payloads, long from, long to) {
+        return Mono.defer(() -> {
+            final int count = (int) (to - from);
+            final List<String> args = new ArrayList<>(count * 5);
+            final long[] uids = new long[count];
+            final String timestamp = Long.toString(System.currentTimeMillis());
+            for (int i = 0; i < count; i++) {
+                final long index = from + i;
+                final String id = ids.next();
+                uids[i] = StreamIds.pack(id);
+                args.add(id);
+                args.add(timestamp);
+                args.add(Integer.toString(portIds[(int) (index % portIds.length)]));
+                args.add(Integer.toString(portIds[(int) ((index + 1) % portIds.length)]));
+                args.add(payloads[(int) (index % payloads.length)]);
+            }
+
+            final long now = System.nanoTime();
+            for (long uid : uids) {
+                sent.put(uid, now);
+            }
+            return template.execute(WRITE_SCRIPT, List.of(key), args)
+                    .doOnNext(written::addAndGet)
+                    .then()
+                    .onErrorResume(e -> {
+                        log.warn("Unable to write {} messages to {}.", count, key, e);
+                        failed.addAndGet(count);
+                        for (long uid : uids) {
+                            sent.remove(uid);
+                        }
+                        return Mono.empty();
+                    });
+        });
+    }
+
+    private void delivered(Map<Long, Long> sent, LazyMsg header) {
+        // decoding is part of delivering a message, so it is included in its latency
+        header.msg();
+        final Long sentAt = sent.remove(header.uid());
+        if (sentAt != null) {
+            deliveryLatency.record(System.nanoTime() - sentAt, TimeUnit.NANOSECONDS);
+        }
+        delivered.incrementAndGet();
+    }
+
+    private Mono<String> measureReplay(Session session) {
+        return Mono.defer(() -> {
+            final long start = System.nanoTime();
+            return msgService.replay(session, Range.<RecordId>unbounded()).count().map(count -> {
+                final double seconds = (System.nanoTime() - start) / 1e9;
+                return String.format("Replayed session %s: %d msgs in %.2fs (%.0f msgs/s).",
+                        session.getName(), count, seconds, count / seconds);
+            });
+        });
+    }
+
+    /**
+     * Creates payloads of the configured size by padding a valid JSON payload with insignificant whitespace. Payloads
+     * differ in length so that they are not all served by a single parse cache entry.
+     */
+    private String[] payloads() {
+        final String json = inspectionBlueprint.serializer().apply(Empty.apply());
+        final String[] payloads = new String[64];
+        for (int i = 0; i < payloads.length; i++) {
+            final int padding = Math.max(0, payloadSize - json.length()) + i;
+            payloads[i] = " ".repeat(padding) + json;
+        }
+        return payloads;
+    }
+
+    private void report() {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+
+        long inFlight = 0;
+        for (Map<Long, Long> sent : pending.values()) {
+            inFlight += sent.size();
+        }
+
+        final StringBuilder percentiles = new StringBuilder();
+        for (ValueAtPercentile percentile : deliveryLatency.takeSnapshot().percentileValues()) {
+            percentiles.append(" p").append(percentile.percentile() * 100)
+                    .append('=').append(String.format("%.2fms", percentile.value(TimeUnit.MILLISECONDS)));
+        }
+
+        log.info("Soak: written={} failed={} delivered={} pending={} latency[{} ] heap={}MB gc={} ({}ms)",
+                written.get(), failed.get(), delivered.get(), inFlight, percentiles,
+                memory.getHeapMemoryUsage().getUsed() >> 20, gcCount, gcMillis);
+    }
+
+    /**
+     * Generates increasing stream ids up front, so each message's send time can be recorded before it is written.
+     */
+    private static final class IdGenerator {
+
+        private long lastMillis = -1;
+
+        private long sequence = 0;
+
+        private synchronized String next() {
+            final long now = Math.max(System.currentTimeMillis(), lastMillis);
+            sequence = now == lastMillis ? sequence + 1 : 0;
+            lastMillis = now;
+            return now + "-" + sequence;
+        }
+    }
+
+}
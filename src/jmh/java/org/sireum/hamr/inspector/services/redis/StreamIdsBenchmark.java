@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.domain.Range;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversions between redis stream ids, packed uids and range bounds that are performed for every
+ * message and every range read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamIdsBenchmark {
+
+    private String streamId;
+
+    private long uid;
+
+    private Range.Bound<String> lowerBound;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        streamId = System.currentTimeMillis() + "-7";
+        uid = StreamIds.pack(streamId);
+        lowerBound = Range.Bound.exclusive(streamId);
+    }
+
+    @Benchmark
+    public long pack() {
+        return StreamIds.pack(streamId);
+    }
+
+    @Benchmark
+    public String unpack() {
+        return StreamIds.unpack(uid);
+    }
+
+    @Benchmark
+    public String next() {
+        return StreamIds.next(streamId);
+    }
+
+    @Benchmark
+    public long floorOf() {
+        return StreamIds.floorOf(lowerBound);
+    }
+
+    @Benchmark
+    public Range<String> pageRange() {
+        return Range.of(Range.Bound.inclusive(StreamIds.next(streamId)), Range.Bound.unbounded());
+    }
+
+}
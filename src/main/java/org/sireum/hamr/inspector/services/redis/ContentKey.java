@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A compact key identifying a JSON payload by its content, used instead of the (potentially very large) JSON string
+ * itself when caching decoded payloads.
+ *
+ * Two independent 64-bit hashes and the payload's length are kept, so unrelated payloads colliding on all three is
+ * practically impossible for the number of distinct payloads a session can contain.
+ *
+ * The key also carries an estimate of how much heap the decoded payload will use. It is computed during the same
+ * pass as the hashes by counting the JSON structure: every object or array becomes at least one object on the heap,
+ * every element or field becomes at least one reference to a (usually boxed) value, and the remaining characters are
+ * mostly string contents.
+ */
+final class ContentKey {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /**
+     * The size of a ContentKey itself, including its object header.
+     */
+    private static final int KEY_BYTES = 40;
+
+    private static final int CONTAINER_BYTES = 32;
+
+    private static final int ELEMENT_BYTES = 24;
+
+    private static final int CHARACTER_BYTES = 2;
+
+    private final long hash1;
+
+    private final long hash2;
+
+    private final int length;
+
+    private final int weight;
+
+    private ContentKey(long hash1, long hash2, int length, int weight) {
+        this.hash1 = hash1;
+        this.hash2 = hash2;
+        this.length = length;
+        this.weight = weight;
+    }
+
+    @NotNull
+    static ContentKey of(@NotNull String json) {
+        long hash1 = FNV_OFFSET_BASIS;
+        long hash2 = 0;
+        long containers = 0;
+        long elements = 1;
+
+        final int length = json.length();
+        for (int i = 0; i < length; i++) {
+            final char c = json.charAt(i);
+
+            hash1 = (hash1 ^ c) * FNV_PRIME;
+            hash2 = (hash2 + c) * GOLDEN_GAMMA;
+
+            if (c == '{' || c == '[') {
+                containers++;
+            } else if (c == ',' || c == ':') {
+                elements++;
+            }
+        }
+
+        final long weight = KEY_BYTES + containers * CONTAINER_BYTES + elements * ELEMENT_BYTES + (long) length * CHARACTER_BYTES;
+        return new ContentKey(hash1, mix(hash2 ^ length), length, (int) Math.min(Integer.MAX_VALUE, weight));
+    }
+
+    /**
+     * @return the approximate number of bytes used by this key and the payload decoded from its content
+     */
+    int weight() {
+        return weight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ContentKey)) return false;
+        final ContentKey that = (ContentKey) o;
+        return hash1 == that.hash1 && hash2 == that.hash2 && length == that.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash1 ^ (hash1 >>> 32));
+    }
+
+    private static long mix(long z) {
+        // the finalizer of splitmix64, spreads every input bit across the whole output
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -25,14 +25,25 @@
 
 package org.sireum.hamr.inspector.services.redis;
 
+import art.DataContent;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.sireum.hamr.inspector.common.Injection;
 import org.sireum.hamr.inspector.common.InspectionBlueprint;
 import org.sireum.hamr.inspector.services.InjectionService;
 import org.sireum.hamr.inspector.services.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Controller;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
 
 @Slf4j
 @Controller
@@ -40,25 +51,100 @@ public class InjectionServiceRedis implements InjectionService {
 
     private final StringRedisTemplate template;
 
+    private final ReactiveStringRedisTemplate reactiveTemplate;
+
     private final InspectionBlueprint inspectionBlueprint;
 
-    public InjectionServiceRedis(StringRedisTemplate template, InspectionBlueprint inspectionBlueprint) {
+    private final RedisServiceMetrics metrics;
+
+    /**
+     * The maximum number of PUBLISHes of {@link #inject(Session, Flux)} that may be awaiting their acknowledgement
+     * at once. These are pipelined over the reactive template's shared connection.
+     */
+    @Value("${inspector.redis.injection.pipeline-depth:64}")
+    private int pipelineDepth;
+
+    /**
+     * The maximum number of injections per second published by {@link #inject(Session, Flux)}, or 0 for no limit.
+     */
+    @Value("${inspector.redis.injection.max-rate:0}")
+    private int maxRate;
+
+    @Value("${inspector.redis.injection.serialization-cache.maximum-size:4096}")
+    private long serializationCacheMaximumSize;
+
+    /**
+     * Serialized payloads keyed by the {@link DataContent} they were serialized from. Injection campaigns tend to
+     * repeat the same few payloads, which then only need to be serialized once.
+     */
+    private Cache<DataContent, String> serializationCache;
+
+    public InjectionServiceRedis(StringRedisTemplate template, ReactiveStringRedisTemplate reactiveTemplate, InspectionBlueprint inspectionBlueprint, RedisServiceMetrics metrics) {
         this.template = template;
+        this.reactiveTemplate = reactiveTemplate;
         this.inspectionBlueprint = inspectionBlueprint;
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    private void postConstruct() {
+        serializationCache = Caffeine.newBuilder()
+                .maximumSize(serializationCacheMaximumSize)
+                .build();
     }
 
     @Override
     public void inject(@NotNull Session session, @NotNull Injection injection) {
+        final String key = channelOf(session);
+        final String message = messageOf(injection);
+
+        log.info("Injecting {} to {}", message, key);
+        metrics.injectionLatency().record(() -> template.convertAndSend(key, message));
+    }
+
+    /**
+     * Publishes every injection of a flux to the session, in order and without blocking. Up to
+     * "inspector.redis.injection.pipeline-depth" PUBLISHes are in flight at once, and publishing is throttled to
+     * "inspector.redis.injection.max-rate" injections per second if a rate is configured.
+     *
+     * @param session the session to inject into
+     * @param injections the injections to publish
+     * @return the number of subscribers that received each injection, in the order of the injections
+     */
+    @NotNull
+    public Flux<Long> inject(@NotNull Session session, @NotNull Flux<Injection> injections) {
+        final String key = channelOf(session);
+        final Timer latency = metrics.injectionLatency();
+
+        final Flux<Injection> throttled = maxRate > 0
+                ? injections.delayElements(Duration.ofNanos(1_000_000_000L / maxRate))
+                : injections;
+
+        return throttled
+                .map(this::messageOf)
+                .flatMapSequential(message -> Mono.defer(() -> {
+                    log.debug("Injecting {} to {}", message, key);
+                    final Timer.Sample sample = Timer.start(metrics.registry());
+                    return reactiveTemplate.convertAndSend(key, message).doOnSuccess(any -> sample.stop(latency));
+                }), pipelineDepth);
+    }
+
+    private static String channelOf(Session session) {
+        return session + "-pubsub";
+    }
+
+    private String messageOf(Injection injection) {
         final int bridgeId = injection.bridge().id().toInt();
         final int portId = injection.port().id().toInt();
 
-        final String dataContentString = inspectionBlueprint.serializer().apply(injection.dataContent());
+        final String dataContentString = serializationCache.get(injection.dataContent(),
+                dataContent -> inspectionBlueprint.serializer().apply(dataContent));
 
-        final String key = String.format("%s-pubsub", session);
-        final String message = String.format("%d,%d,%s", bridgeId, portId, dataContentString);
-
-        log.info("Injecting {} to {}", message, key);
-        template.convertAndSend(key, message);
+        return new StringBuilder(dataContentString.length() + 24)
+                .append(bridgeId).append(',')
+                .append(portId).append(',')
+                .append(dataContentString)
+                .toString();
     }
 }
 
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import art.DataContent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.sireum.hamr.inspector.common.Msg;
+import org.sireum.hamr.inspector.services.Session;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A stream message whose header (ids and timestamp) is decoded eagerly but whose payload is only deserialized the
+ * first time it is accessed. Views that only show or filter on headers therefore never pay for decoding payloads.
+ *
+ * Both the decoded payload and the {@link Msg} built from it are memoized, and payloads are decoded through the same
+ * parse cache as fully decoded messages, so instances shared between subscribers decode their payload at most once.
+ */
+public final class LazyMsg {
+
+    private final RecordDecoder decoder;
+
+    private final Session session;
+
+    private final long uid;
+
+    private final long timestamp;
+
+    private final int srcId;
+
+    private final int dstId;
+
+    /**
+     * The raw JSON payload, released once it has been decoded. This is either a String or, for messages read from a
+     * {@link SegmentStore}, the UTF-8 encoded bytes copied out of a segment, so stored payloads are not decoded
+     * unless they are accessed.
+     */
+    @Nullable
+    private volatile Object data;
+
+    @Nullable
+    private volatile DataContent dataContent;
+
+    @Nullable
+    private volatile Msg msg;
+
+    LazyMsg(RecordDecoder decoder, Session session, long uid, long timestamp, int srcId, int dstId, String data) {
+        this.decoder = decoder;
+        this.session = session;
+        this.uid = uid;
+        this.timestamp = timestamp;
+        this.srcId = srcId;
+        this.dstId = dstId;
+        this.data = data;
+    }
+
+    LazyMsg(RecordDecoder decoder, Session session, long uid, long timestamp, int srcId, int dstId, ByteBuffer data) {
+        this.decoder = decoder;
+        this.session = session;
+        this.uid = uid;
+        this.timestamp = timestamp;
+        this.srcId = srcId;
+        this.dstId = dstId;
+        this.data = data;
+    }
+
+    /**
+     * @return the packed id of the record this message was read from, which is also the uid of {@link #msg()}
+     */
+    public long uid() {
+        return uid;
+    }
+
+    /**
+     * @return the timestamp of this message relative to the start of its session
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public int srcId() {
+        return srcId;
+    }
+
+    public int dstId() {
+        return dstId;
+    }
+
+    /**
+     * Decodes the payload of this message if it has not been decoded yet.
+     *
+     * @return the decoded payload, or null if the payload cannot be decoded
+     */
+    @Nullable
+    public DataContent dataContent() {
+        DataContent result = dataContent;
+        if (result == null) {
+            final Object raw = data;
+            if (raw == null) {
+                // decoded concurrently, in which case the payload was published before the json was released
+                return dataContent;
+            }
+            final String json = raw instanceof ByteBuffer
+                    ? StandardCharsets.UTF_8.decode(((ByteBuffer) raw).duplicate()).toString()
+                    : (String) raw;
+            result = decoder.parse(json);
+            if (result != null) {
+                dataContent = result;
+                data = null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds (and caches in {@link ServiceCaches}) the full message, decoding the payload if needed.
+     *
+     * @return the full message, or {@link MsgServiceRedis#INVALID_MSG} if the payload cannot be decoded
+     */
+    @NotNull
+    public Msg msg() {
+        Msg result = msg;
+        if (result == null) {
+            result = ServiceCaches.get(session, uid);
+            if (result == null) {
+                final DataContent content = dataContent();
+                if (content == null) {
+                    return MsgServiceRedis.INVALID_MSG;
+                }
+                result = decoder.create(srcId, dstId, content, timestamp, uid);
+                ServiceCaches.put(session, uid, result);
+            }
+            msg = result;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Controls what happens when a live subscriber cannot keep up with the messages arriving in its session.
+ *
+ * Each live subscription holds at most {@link #maxBuffered()} messages that were received but not yet requested by
+ * the subscriber. What happens once that limit is exceeded is decided by the subscription's {@link Overflow}.
+ */
+public final class LiveOptions {
+
+    public enum Overflow {
+
+        /**
+         * Lossless. The subscriber leaves the live tail, reads everything it missed with paged XRANGEs at its own
+         * pace, and then rejoins the live tail. No message is skipped or repeated.
+         */
+        BUFFER,
+
+        /**
+         * The oldest buffered messages are dropped, so the subscriber always sees the most recent messages.
+         */
+        DROP_TO_LATEST,
+
+        /**
+         * The subscription fails with an overflow error.
+         */
+        ERROR
+    }
+
+    public static final int DEFAULT_MAX_BUFFERED = 4096;
+
+    public static final LiveOptions DEFAULT = new LiveOptions(Overflow.BUFFER, DEFAULT_MAX_BUFFERED);
+
+    private final Overflow overflow;
+
+    private final int maxBuffered;
+
+    private LiveOptions(Overflow overflow, int maxBuffered) {
+        if (maxBuffered <= 0) {
+            throw new IllegalArgumentException("maxBuffered must be positive but was " + maxBuffered);
+        }
+        this.overflow = overflow;
+        this.maxBuffered = maxBuffered;
+    }
+
+    @NotNull
+    public static LiveOptions of(@NotNull Overflow overflow, int maxBuffered) {
+        return new LiveOptions(overflow, maxBuffered);
+    }
+
+    @NotNull
+    public Overflow overflow() {
+        return overflow;
+    }
+
+    public int maxBuffered() {
+        return maxBuffered;
+    }
+
+    @Override
+    public String toString() {
+        return "LiveOptions{overflow=" + overflow + ", maxBuffered=" + maxBuffered + "}";
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.sireum.hamr.inspector.services.Session;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.ReactiveStreamOperations;
+import reactor.core.Disposable;
+import reactor.core.Exceptions;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.ConnectableFlux;
+import reactor.core.publisher.Flux;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Multicasts the live tail of each session's stream to any number of subscribers.
+ *
+ * Each session with at least one live subscriber has exactly one {@link Tail}, which owns the only
+ * {@link StreamTailer} poller and the only decode pipeline for that session. The most recent messages are retained
+ * in a bounded replay buffer, and anything older than the buffer is read with a one-off XRANGE before the subscriber
+ * is handed over to the shared tail. The poller is shut down once the last subscriber leaves. Sessions that have
+ * already stopped get no tail at all, since nothing is ever added to them, and are simply read with XRANGE.
+ *
+ * Subscribers that fall behind the tail by more than their {@link LiveOptions#maxBuffered()} are handled according to
+ * their {@link LiveOptions.Overflow}, so a slow subscriber never makes the tail buffer without bound.
+ *
+ * @param <T> the type records are decoded to, see {@link StreamMsg} and {@link LazyMsg}
+ */
+@Slf4j
+final class LiveStreamHub<T> {
+
+    /**
+     * Tags the meters of each hub, since a session may be followed by several hubs that decode it differently.
+     */
+    static final String VIEW_TAG = "view";
+
+    /**
+     * How long a tail is kept polling after its last subscriber leaves, so that quickly re-subscribing clients
+     * (for example a UI switching views) reuse the existing poller.
+     */
+    private static final Duration GRACE_PERIOD = Duration.ofSeconds(2);
+
+    private final Map<Session, Tail> tails = new ConcurrentHashMap<>();
+
+    /**
+     * The lag gauge and live record counter of each session with a tail. They outlive the tail that registered them
+     * if a new tail for the same session is created before the old one has terminated, so the gauge reports whichever
+     * tail is current and both are only removed by the tail that is current when it terminates.
+     */
+    private final Map<Session, LagGauge> lagGauges = new ConcurrentHashMap<>();
+
+    private final ReactiveStreamOperations<String, String, String> streamOps;
+
+    private final StreamPager streamPager;
+
+    private final StreamTailer streamTailer;
+
+    private final BiFunction<Session, Flux<MapRecord<String, String, String>>, Flux<T>> decoder;
+
+    private final ToLongFunction<T> uidOf;
+
+    private final String view;
+
+    private final RedisServiceMetrics metrics;
+
+    private final int historySize;
+
+    LiveStreamHub(ReactiveStreamOperations<String, String, String> streamOps,
+                  StreamPager streamPager,
+                  RedisServiceMetrics metrics,
+                  StreamTailer streamTailer,
+                  BiFunction<Session, Flux<MapRecord<String, String, String>>, Flux<T>> decoder,
+                  ToLongFunction<T> uidOf,
+                  String view,
+                  int historySize) {
+        this.streamOps = streamOps;
+        this.streamPager = streamPager;
+        this.metrics = metrics;
+        this.streamTailer = streamTailer;
+        this.decoder = decoder;
+        this.uidOf = uidOf;
+        this.view = view;
+        this.historySize = historySize;
+    }
+
+    /**
+     * Returns every message of the session's stream on or after the lower bound, followed by all messages that are
+     * added to the stream afterwards. The returned flux completes when the session's "stop" record is read.
+     *
+     * @param session the session to follow
+     * @param lowerBound a redis-friendly lower bound, which may be unbounded to read from the start of the stream
+     * @param options how to handle the subscriber falling behind
+     * @return a flux of all messages from the lower bound onwards, without gaps or duplicates unless the options
+     * allow dropping messages
+     */
+    @NotNull
+    Flux<T> live(@NotNull Session session, @NotNull Range.Bound<String> lowerBound, @NotNull LiveOptions options) {
+        return Flux.defer(() -> {
+            final AtomicLong lastDelivered = new AtomicLong(-1L);
+
+            // A BUFFER subscriber that falls too far behind is resumed by resubscribing from after the last message it
+            // received. That reads everything it missed with paged XRANGEs (which are only requested as fast as the
+            // subscriber consumes them) and then rejoins the live tail, exactly like a new subscriber would. Retrying
+            // the same deferred subscription keeps the operator chain the same depth however often that happens.
+            return Flux.defer(() -> {
+                final long last = lastDelivered.get();
+                final Range.Bound<String> from = last == -1L
+                        ? lowerBound
+                        : Range.Bound.inclusive(StreamIds.next(StreamIds.unpack(last)));
+
+                final Tail tail = tails.get(session);
+                if (tail != null) {
+                    return tail.subscribe(from, options);
+                }
+
+                // a stopped session never receives another record, so it is simply read up to its "stop" record
+                // instead of starting a poller that would block on XREAD until the grace period ends
+                final String key = session.getName() + "-stream";
+                return streamOps.reverseRange(key, Range.unbounded(), Limit.limit().count(1))
+                        .collectList()
+                        .flatMapMany(newest -> {
+                            if (!newest.isEmpty() && newest.get(0).getValue().get("stop") != null) {
+                                return decoder.apply(session,
+                                        streamPager.range(session, Range.of(from, Range.Bound.unbounded())));
+                            }
+                            final String anchor = newest.isEmpty() ? StreamIds.MIN : newest.get(0).getId().getValue();
+                            return tails.computeIfAbsent(session, any -> new Tail(session, anchor)).subscribe(from, options);
+                        });
+            })
+                    .doOnNext(it -> lastDelivered.set(uidOf.applyAsLong(it)))
+                    .retryWhen(Retry.indefinitely()
+                            .filter(e -> options.overflow() == LiveOptions.Overflow.BUFFER && Exceptions.isOverflow(e))
+                            .doBeforeRetry(signal -> log.debug("Live subscriber of session {} fell more than {} "
+                                    + "messages behind, catching up with XRANGE.", session.getName(), options.maxBuffered())));
+        });
+    }
+
+    /**
+     * @return the number of sessions that currently have an active poller
+     */
+    int activeTails() {
+        return tails.size();
+    }
+
+    /**
+     * @return the value of this hub's {@link #VIEW_TAG}
+     */
+    String view() {
+        return view;
+    }
+
+    private final class Tail {
+
+        private final Session session;
+
+        private final String key;
+
+        /**
+         * The id of the newest record in the stream when this tail was created. The tail emits everything after it.
+         */
+        private final String anchor;
+
+        private final Flux<T> shared;
+
+        /**
+         * Mirrors the ids held by the replay buffer of {@link #shared} so subscribers know which ids are no longer
+         * replayable and must be read with XRANGE instead.
+         */
+        private final long[] history;
+
+        private int historyIndex = 0;
+
+        private long evictedThrough = -1L;
+
+        /**
+         * The uid of the newest message received by this tail.
+         */
+        private volatile long newest = -1L;
+
+        /**
+         * The uid of the last message delivered to each subscriber, or -1 if a subscriber has not received anything.
+         */
+        private final Set<AtomicLong> positions = ConcurrentHashMap.newKeySet();
+
+        private final Counter received;
+
+        private Tail(Session session, String anchor) {
+            this.session = session;
+            this.key = session.getName() + "-stream";
+            this.history = new long[historySize];
+            Arrays.fill(history, -1L);
+
+            // the counter is owned by the session's lag gauge holder, so it is removed together with the gauge
+            this.received = lagGauges.compute(session, (any, gauge) -> {
+                final LagGauge current = gauge != null ? gauge : new LagGauge(session);
+                current.tail = this;
+                return current;
+            }).received;
+
+            this.anchor = anchor;
+
+            this.shared = decoder.apply(session, streamTailer.tail(key, anchor))
+                    .doOnNext(this::retain)
+                    .doFinally(signal -> {
+                        log.debug("Live tail of session {} terminated with {}.", session.getName(), signal);
+                        tails.remove(session, this);
+                        lagGauges.computeIfPresent(session, (any, gauge) -> {
+                            if (gauge.tail != this) {
+                                return gauge;
+                            }
+                            metrics.registry().remove(gauge.gauge);
+                            metrics.registry().remove(gauge.received);
+                            return null;
+                        });
+                    })
+                    .replay(historySize)
+                    .refCount(1, GRACE_PERIOD);
+        }
+
+        private Flux<T> subscribe(Range.Bound<String> lowerBound, LiveOptions options) {
+            return Flux.defer(() -> {
+                final long floor = StreamIds.floorOf(lowerBound);
+                final long through;
+                final ConnectableFlux<T> pinned;
+                final Disposable connection;
+
+                // Connecting under the lock guarantees nothing newer than "through" can be evicted from the replay
+                // buffer before this subscriber starts holding onto it, so the catch-up below never leaves a gap.
+                synchronized (this) {
+                    through = Math.max(evictedThrough, StreamIds.pack(anchor));
+                    pinned = shared
+                            .filter(it -> {
+                                final long uid = uidOf.applyAsLong(it);
+                                return uid > through && uid >= floor;
+                            })
+                            .publish();
+                    connection = pinned.connect();
+                }
+
+                final AtomicBoolean stopped = new AtomicBoolean(false);
+                final Flux<MapRecord<String, String, String>> catchUp =
+                        streamPager.range(session, Range.of(lowerBound, Range.Bound.inclusive(StreamIds.unpack(through))))
+                                .doOnNext(record -> {
+                                    if (record.getValue().get("stop") != null) {
+                                        stopped.set(true);
+                                    }
+                                });
+
+                final AtomicLong position = new AtomicLong(-1L);
+                positions.add(position);
+
+                return Flux.concat(decoder.apply(session, catchUp),
+                        Flux.defer(() -> stopped.get() ? Flux.<T>empty() : bounded(pinned, options)))
+                        .doOnNext(it -> position.set(uidOf.applyAsLong(it)))
+                        .doFinally(signal -> {
+                            positions.remove(position);
+                            connection.dispose();
+                        });
+            });
+        }
+
+        private Flux<T> bounded(Flux<T> pinned, LiveOptions options) {
+            if (options.overflow() == LiveOptions.Overflow.DROP_TO_LATEST) {
+                return pinned.onBackpressureBuffer(options.maxBuffered(), dropped -> { }, BufferOverflowStrategy.DROP_OLDEST);
+            }
+            return pinned.onBackpressureBuffer(options.maxBuffered());
+        }
+
+        private void retain(T msg) {
+            final long uid = uidOf.applyAsLong(msg);
+            synchronized (this) {
+                final long evicted = history[historyIndex];
+                history[historyIndex] = uid;
+                historyIndex = (historyIndex + 1) % history.length;
+                evictedThrough = Math.max(evictedThrough, evicted);
+            }
+            newest = uid;
+            received.increment();
+        }
+
+        private double lag() {
+            final long newestUid = newest;
+            if (newestUid == -1L) {
+                return 0;
+            }
+
+            long slowest = newestUid;
+            for (AtomicLong position : positions) {
+                final long uid = position.get();
+                if (uid != -1L && uid < slowest) {
+                    slowest = uid;
+                }
+            }
+            return StreamIds.timestampOf(newestUid) - StreamIds.timestampOf(slowest);
+        }
+    }
+
+    private final class LagGauge {
+
+        private final Gauge gauge;
+
+        private final Counter received;
+
+        private volatile Tail tail;
+
+        private LagGauge(Session session) {
+            this.gauge = Gauge.builder("inspector.redis.live.lag", this, LagGauge::lag)
+                    .description("Stream time between the newest message received by a live poller and the last "
+                            + "message delivered to its slowest subscriber")
+                    .baseUnit("milliseconds")
+                    .tag(RedisServiceMetrics.SESSION_TAG, session.getName())
+                    .tag(VIEW_TAG, view)
+                    .register(metrics.registry());
+            this.received = metrics.liveRecords(session);
+        }
+
+        private double lag() {
+            final Tail current = tail;
+            return current != null ? current.lag() : 0;
+        }
+    }
+
+}
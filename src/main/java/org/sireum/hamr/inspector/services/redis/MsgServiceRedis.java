@@ -30,8 +30,12 @@ import art.Empty;
 import art.UPort;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.sireum.hamr.inspector.common.ArtUtils;
 import org.sireum.hamr.inspector.common.InspectionBlueprint;
 import org.sireum.hamr.inspector.common.Msg;
@@ -39,22 +43,34 @@ import org.sireum.hamr.inspector.services.MsgService;
 import org.sireum.hamr.inspector.services.RecordId;
 import org.sireum.hamr.inspector.services.Session;
 import org.sireum.hamr.inspector.services.SessionService;
+import org.sireum.hamr.inspector.services.SessionStatus;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
 import org.springframework.data.redis.connection.stream.MapRecord;
-import org.springframework.data.redis.connection.stream.ReadOffset;
-import org.springframework.data.redis.connection.stream.Record;
-import org.springframework.data.redis.connection.stream.StreamOffset;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.data.redis.core.ReactiveStreamOperations;
-import org.springframework.data.redis.stream.StreamReceiver;
 import org.springframework.stereotype.Controller;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuple3;
+import reactor.util.function.Tuples;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.file.Path;
 import java.time.Duration;
-import java.util.NoSuchElementException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import static org.springframework.data.domain.Range.Bound.*;
 
@@ -65,81 +81,586 @@ public class MsgServiceRedis implements MsgService {
     private static final Empty EMPTY = Empty.apply();
     public static final Msg INVALID_MSG = new Msg(null, null, null, null, EMPTY, -1, -1);
     public static final Duration POLL_TIMEOUT = Duration.ofSeconds(2);
+    public static final int LIVE_HISTORY_SIZE = 4096;
+
+    /**
+     * The maximum number of messages and the maximum delay after which a live aggregate re-emits its changed windows.
+     */
+    private static final int LIVE_AGGREGATE_BATCH_SIZE = 4096;
+    private static final Duration LIVE_AGGREGATE_INTERVAL = Duration.ofMillis(250);
+
+    /**
+     * The number of records that may be queued per decode worker, so workers never wait on the next record.
+     */
+    private static final int DECODE_QUEUE_DEPTH = 4;
 
     private final SessionService sessionService;
     private final InspectionBlueprint inspectionBlueprint;
     private final ArtUtils artUtils;
+    private final RedisServiceMetrics metrics;
 
     private final ReactiveRedisTemplate<String, String> template;
 
     private ReactiveStreamOperations<String, String, String> streamOps;
 
-    final Cache<String, DataContent> parseCache = Caffeine.newBuilder()
-            .<String, DataContent>weigher((key, value) -> approxMinMemUsageBytes(key))
-            .maximumWeight(64_000_000) // ~ 0.064 GB // todo add to properties or better yet delegate to spring cache..
-            .expireAfterAccess(Duration.ofMinutes(5))
-            .build();
+    /**
+     * The maximum number of records read per XRANGE when replaying. Non-positive values read each range at once.
+     */
+    @Value("${inspector.redis.replay.page-size:1024}")
+    private int replayPageSize;
+
+    /**
+     * The number of replay pages requested ahead of downstream demand.
+     */
+    @Value("${inspector.redis.replay.prefetch:2}")
+    private int replayPrefetch;
+
+    private StreamPager streamPager;
 
     /**
-     * A source that periodically polls the server and forwards any new messages to all subscribers of a live streams.
+     * The approximate number of bytes that cached {@link Msg}s of all sessions may use, see {@link ServiceCaches}.
+     */
+    @Value("${inspector.redis.msg-cache.maximum-weight:" + ServiceCaches.DEFAULT_MAXIMUM_WEIGHT + "}")
+    private long msgCacheMaximumWeight;
+
+    /**
+     * The approximate number of bytes that decoded {@link DataContent}s in {@link #parseCache} may use.
+     */
+    @Value("${inspector.redis.parse-cache.maximum-weight:64000000}")
+    private long parseCacheMaximumWeight;
+
+    @Value("${inspector.redis.parse-cache.expire-after-access:5m}")
+    private Duration parseCacheExpireAfterAccess;
+
+    /**
+     * Decoded {@link DataContent}s keyed by a hash of the JSON they were decoded from. Many messages of a session
+     * tend to carry identical payloads, which then only need to be decoded (and held in memory) once.
+     */
+    Cache<ContentKey, DataContent> parseCache;
+
+    private RecordDecoder recordDecoder;
+
+    /**
+     * A source that polls the server and forwards any new messages to all subscribers of a live streams.
      * This is the only source of polling to support all stream message forwarding.
      *
      * Note that published messages (currently only injections) are NOT affected by polling.
      */
-    private StreamReceiver<String, MapRecord<String, String, String>> streamReceiver;
+    private StreamTailer streamTailer;
+
+    /**
+     * The largest COUNT a live poller's XREAD may grow to while the stream is receiving a burst of records.
+     */
+    @Value("${inspector.redis.live.max-read-count:4096}")
+    private int liveMaxReadCount;
+
+    /**
+     * Shares one {@link #streamTailer} poll loop and one decode pipeline between all live subscribers of a session.
+     */
+    private LiveStreamHub<StreamMsg> liveStreamHub;
+
+    /**
+     * Like {@link #liveStreamHub}, but for live subscribers that only decode headers, see {@link #liveHeaders}.
+     */
+    private LiveStreamHub<LazyMsg> liveHeaderHub;
+
+    private OrdinalIndex ordinalIndex;
+
+    private PortIndex portIndex;
+
+    private TailReader tailReader;
+
+    /**
+     * The directory completed sessions are copied to (see {@link SegmentStore}), or empty to always replay from redis.
+     */
+    @Value("${inspector.redis.segment-store.directory:}")
+    private String segmentStoreDirectory;
+
+    /**
+     * The maximum number of segment files mapped into memory at once.
+     */
+    @Value("${inspector.redis.segment-store.mapped-segments:16}")
+    private int segmentStoreMappedSegments;
+
+    @Nullable
+    private SegmentStore segmentStore;
+
+    /**
+     * The maximum number of (session, grouping) pairs whose aggregates are cached, see {@link #aggregateCache}.
+     */
+    @Value("${inspector.redis.aggregate.cache-size:64}")
+    private long aggregateCacheSize;
+
+    /**
+     * The aggregates of completed sessions per session and grouping, keyed by window width. Completed sessions never
+     * change, so their aggregates never need to be recomputed, and coarser aggregates can be merged from finer ones.
+     */
+    private Cache<String, NavigableMap<Long, List<WindowCounts>>> aggregateCache;
+
+    /**
+     * The number of worker threads used to decode records. When zero (the default) records are decoded inline on
+     * the redis client's I/O thread.
+     */
+    @Value("${inspector.redis.decode.parallelism:0}")
+    private int decodeParallelism;
+
+    @Nullable
+    private Scheduler decodeScheduler;
 
-    public MsgServiceRedis(ReactiveRedisTemplate<String, String> template, SessionService sessionService, InspectionBlueprint inspectionBlueprint, ArtUtils artUtils) {
+    public MsgServiceRedis(ReactiveRedisTemplate<String, String> template, SessionService sessionService, InspectionBlueprint inspectionBlueprint, ArtUtils artUtils, RedisServiceMetrics metrics) {
         this.template = template;
         this.sessionService = sessionService;
         this.inspectionBlueprint = inspectionBlueprint;
         this.artUtils = artUtils;
+        this.metrics = metrics;
     }
 
     @PostConstruct
     private void postConstruct() {
         streamOps = template.opsForStream();
 
+        parseCache = Caffeine.newBuilder()
+                .<ContentKey, DataContent>weigher((key, value) -> key.weight())
+                .maximumWeight(parseCacheMaximumWeight)
+                .expireAfterAccess(parseCacheExpireAfterAccess)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(metrics.registry(), parseCache, "inspector.parse-cache");
+        ServiceCaches.bindTo(metrics.registry());
+
+        recordDecoder = new RecordDecoder(parseCache, json -> inspectionBlueprint.deserializer().apply(json), this::createMsg);
+
+        streamPager = new StreamPager(streamOps, metrics, replayPageSize, replayPrefetch);
+        ServiceCaches.setMaximumWeight(msgCacheMaximumWeight);
+
+        if (decodeParallelism > 0) {
+            decodeScheduler = Schedulers.newParallel("inspector-decode", decodeParallelism, true);
+        }
+
         final ReactiveRedisConnectionFactory connectionFactory = template.getConnectionFactory();
-        final var options = StreamReceiver.StreamReceiverOptions.builder()
-                .pollTimeout(POLL_TIMEOUT)
+        streamTailer = new StreamTailer(connectionFactory, metrics, POLL_TIMEOUT, liveMaxReadCount);
+
+        liveStreamHub = new LiveStreamHub<>(streamOps, streamPager, metrics, streamTailer, this::decode,
+                StreamMsg::uid, "messages", LIVE_HISTORY_SIZE);
+        liveHeaderHub = new LiveStreamHub<>(streamOps, streamPager, metrics, streamTailer, this::decodeHeaders,
+                LazyMsg::uid, "headers", LIVE_HISTORY_SIZE);
+        for (LiveStreamHub<?> hub : new LiveStreamHub<?>[]{liveStreamHub, liveHeaderHub}) {
+            Gauge.builder("inspector.redis.live.tails", hub, LiveStreamHub::activeTails)
+                    .description("Sessions with an active live poller")
+                    .tag(LiveStreamHub.VIEW_TAG, hub.view())
+                    .register(metrics.registry());
+        }
+        ordinalIndex = new OrdinalIndex(streamOps);
+        tailReader = new TailReader(template);
+        if (!segmentStoreDirectory.isEmpty()) {
+            segmentStore = new SegmentStore(Path.of(segmentStoreDirectory), segmentStoreMappedSegments, streamPager,
+                    sessionService, recordDecoder);
+        }
+        aggregateCache = Caffeine.newBuilder()
+                .maximumSize(aggregateCacheSize)
                 .build();
-        streamReceiver = StreamReceiver.create(connectionFactory, options);
+        portIndex = new PortIndex(template, streamPager, replayPageSize);
+    }
+
+    @PreDestroy
+    private void preDestroy() {
+        if (decodeScheduler != null) {
+            decodeScheduler.dispose();
+        }
     }
 
     @Override
     public @NotNull Flux<Msg> live(@NotNull Session session, @NotNull Range<RecordId> range) {
+        return live(session, range, LiveOptions.DEFAULT);
+    }
+
+    /**
+     * Like {@link #live(Session, Range)}, but with control over what happens if the subscriber falls behind.
+     *
+     * @param session the session to follow
+     * @param range the range of messages to emit, which may be unbounded above to follow the session until it stops
+     * @param options how to handle the subscriber falling behind the session
+     * @return a flux of the messages in the range
+     */
+    public @NotNull Flux<Msg> live(@NotNull Session session, @NotNull Range<RecordId> range, @NotNull LiveOptions options) {
         if (range.getUpperBound().isBounded()) {
             return sessionService.startTimeOf(session).flatMapMany(startTime ->
-                    streamOps.range(session.getName() + "-stream", format(range))
-                    .transform(flux -> RECORD_TRANSFORMER(startTime, session, flux)));
+                    streamPager.range(session, format(range))
+                    .transform(flux -> RECORD_TRANSFORMER(startTime, session, flux)))
+                    .map(StreamMsg::msg);
         } else {
-            if (range.getLowerBound().isBounded()) {
-                final ReadOffset readOffset = range.getLowerBound().getValue()
-                        .map(lower -> ReadOffset.from(format(lower))).get();
-
-                return sessionService.startTimeOf(session).flatMapMany(startTime ->
-                        streamReceiver.receive(StreamOffset.create(session.getName() + "-stream", readOffset))
-                        .transform(flux -> RECORD_TRANSFORMER(startTime, session, flux)));
-            } else {
-                return sessionService.startTimeOf(session).flatMapMany(startTime ->
-                        streamReceiver.receive(StreamOffset.fromStart(session.getName() + "-stream"))
-                        .transform(flux -> RECORD_TRANSFORMER(startTime, session, flux)));
-            }
+            // all unbounded live streams of a session share a single poller, see LiveStreamHub
+            return liveStreamHub.live(session, format(range.getLowerBound()), options).map(StreamMsg::msg);
         }
     }
 
     @Override
     public @NotNull Flux<Msg> replay(@NotNull Session session, @NotNull Range<RecordId> range) {
-        return sessionService.startTimeOf(session).flatMapMany(startTime ->
-            streamOps.range(session.getName() + "-stream", format(range))
-                .transform(flux -> RECORD_TRANSFORMER(startTime, session, flux)));
+        final Flux<Msg> fromRedis = sessionService.startTimeOf(session).flatMapMany(startTime ->
+            streamPager.range(session, format(range))
+                .transform(flux -> RECORD_TRANSFORMER(startTime, session, flux)))
+                    .map(StreamMsg::msg);
+
+        if (segmentStore == null) {
+            return fromRedis;
+        }
+
+        // the store is only checked (and written to) once the replay is actually subscribed
+        return Flux.defer(() -> {
+            if (segmentStore.contains(session)) {
+                return segmentStore.range(session, format(range))
+                        .map(LazyMsg::msg)
+                        .filter(msg -> msg != INVALID_MSG);
+            }
+            segmentStore.storeIfCompleted(session);
+            return fromRedis;
+        });
     }
 
     @Override
     public @NotNull Flux<Msg> replayReverse(@NotNull Session session, @NotNull Range<RecordId> range) {
         return sessionService.startTimeOf(session).flatMapMany(startTime ->
-            streamOps.reverseRange(session.getName() + "-stream", format(range))
-                .transform(flux -> RECORD_TRANSFORMER(startTime, session, flux)));
+            streamPager.reverseRange(session, format(range))
+                .transform(flux -> RECORD_TRANSFORMER(startTime, session, flux)))
+                    .map(StreamMsg::msg);
+    }
+
+    /**
+     * Like {@link #live(Session, Range)}, but only the header of each message is decoded up front. Payloads are decoded
+     * when first accessed through {@link LazyMsg#dataContent()} or {@link LazyMsg#msg()}.
+     *
+     * @param session the session to follow
+     * @param range the range of messages to emit, which may be unbounded above to follow the session until it stops
+     * @return a flux of lazily decoded messages
+     */
+    public @NotNull Flux<LazyMsg> liveHeaders(@NotNull Session session, @NotNull Range<RecordId> range) {
+        if (range.getUpperBound().isBounded()) {
+            return replayHeaders(session, range);
+        } else {
+            return liveHeaderHub.live(session, format(range.getLowerBound()), LiveOptions.DEFAULT);
+        }
+    }
+
+    /**
+     * Like {@link #replay(Session, Range)}, but only the header of each message is decoded up front. Payloads are
+     * decoded when first accessed through {@link LazyMsg#dataContent()} or {@link LazyMsg#msg()}.
+     *
+     * @param session the session to replay
+     * @param range the range of messages to replay
+     * @return a flux of lazily decoded messages
+     */
+    public @NotNull Flux<LazyMsg> replayHeaders(@NotNull Session session, @NotNull Range<RecordId> range) {
+        final Flux<LazyMsg> fromRedis = decodeHeaders(session, streamPager.range(session, format(range)));
+
+        if (segmentStore == null) {
+            return fromRedis;
+        }
+
+        // like replay, the store is only checked once the replay is actually subscribed
+        return Flux.defer(() -> segmentStore.contains(session) ? segmentStore.range(session, format(range)) : fromRedis);
+    }
+
+    /**
+     * Like {@link #replay(Session, Range)}, but only replays messages whose src or dst is one of the given ports.
+     * Matching messages are read from per-port index streams, so the cost of a replay is proportional to the number
+     * of matching messages rather than to the size of the session. The index is brought up to date first, which only
+     * reads the records added since the index was last updated.
+     *
+     * @param session the session to replay
+     * @param range the range of messages to replay
+     * @param portIds the ids of the ports whose messages are replayed
+     * @return a flux of the matching messages
+     */
+    public @NotNull Flux<Msg> replayPorts(@NotNull Session session, @NotNull Range<RecordId> range, @NotNull Set<Integer> portIds) {
+        if (portIds.isEmpty()) {
+            return Flux.empty();
+        }
+        return portIndex.update(session).thenMany(replayIndexed(session, format(range), portIds));
+    }
+
+    /**
+     * Like {@link #live(Session, Range)}, but only emits messages whose src or dst is one of the given ports. Messages
+     * up to the end of the session's stream are read from the port index (see {@link #replayPorts}), after which only
+     * the headers of new messages are decoded until a message matches.
+     *
+     * @param session the session to follow
+     * @param range the range of messages to emit, which may be unbounded above to follow the session until it stops
+     * @param portIds the ids of the ports whose messages are emitted
+     * @return a flux of the matching messages
+     */
+    public @NotNull Flux<Msg> livePorts(@NotNull Session session, @NotNull Range<RecordId> range, @NotNull Set<Integer> portIds) {
+        if (range.getUpperBound().isBounded()) {
+            return replayPorts(session, range, portIds);
+        }
+        if (portIds.isEmpty()) {
+            return Flux.empty();
+        }
+
+        final Range.Bound<String> lowerBound = format(range.getLowerBound());
+        return portIndex.update(session).flatMapMany(indexedThrough -> {
+            if (StreamIds.MIN.equals(indexedThrough)) {
+                return livePortHeaders(session, lowerBound, portIds);
+            }
+
+            final Range.Bound<String> liveBound = StreamIds.floorOf(lowerBound) > StreamIds.pack(indexedThrough)
+                    ? lowerBound
+                    : inclusive(StreamIds.next(indexedThrough));
+            return Flux.concat(
+                    replayIndexed(session, Range.of(lowerBound, inclusive(indexedThrough)), portIds),
+                    livePortHeaders(session, liveBound, portIds));
+        });
+    }
+
+    private Flux<Msg> replayIndexed(Session session, Range<String> range, Set<Integer> portIds) {
+        return sessionService.startTimeOf(session).flatMapMany(startTime ->
+                portIndex.range(session, portIds, range)
+                        .transform(flux -> RECORD_TRANSFORMER(startTime, session, flux)))
+                .map(StreamMsg::msg);
+    }
+
+    private Flux<Msg> livePortHeaders(Session session, Range.Bound<String> lowerBound, Set<Integer> portIds) {
+        return liveHeaderHub.live(session, lowerBound, LiveOptions.DEFAULT)
+                .filter(header -> portIds.contains(header.srcId()) || portIds.contains(header.dstId()))
+                .map(LazyMsg::msg)
+                .filter(msg -> msg != INVALID_MSG);
+    }
+
+    /**
+     * Replays the messages added to the session's stream within a range of times. Times are relative to the start of
+     * the session and are matched against the millisecond timestamps of stream ids, so any time range is read with a
+     * single bounded (paged) XRANGE no matter where in the session it is.
+     *
+     * Note that stream ids are timestamped by the redis server when a record is added, while the timestamps of
+     * {@link Msg}s are taken by the producer, so the two may differ by the clock skew between them.
+     *
+     * @param session the session to replay
+     * @param times the range of times to replay, relative to the start of the session
+     * @return a flux of the messages added within the range of times
+     */
+    public @NotNull Flux<Msg> replayTimes(@NotNull Session session, @NotNull Range<Duration> times) {
+        return sessionService.startTimeOf(session).flatMapMany(startTime ->
+                streamPager.range(session, timeRange(startTime, times))
+                        .transform(flux -> RECORD_TRANSFORMER(startTime, session, flux)))
+                .map(StreamMsg::msg);
+    }
+
+    /**
+     * Replays several sessions at once as a single flux ordered by session-relative timestamp, so runs of the same
+     * scenario can be compared side by side. Messages with equal timestamps are emitted in the order their sessions
+     * were given.
+     *
+     * All sessions are read in parallel, each with paged reads (see {@link StreamPager}) and at most one page of
+     * decoded messages buffered ahead of the merge, so memory use does not depend on the size of the sessions.
+     *
+     * @param sessions the sessions to replay
+     * @param times the range of times to replay, relative to the start of each session
+     * @return a flux of every message of the sessions within the range of times, each paired with its session
+     */
+    public @NotNull Flux<Tuple2<Session, Msg>> replayMerged(@NotNull List<Session> sessions, @NotNull Range<Duration> times) {
+        final List<Flux<Tuple3<Integer, Session, LazyMsg>>> sources = new ArrayList<>(sessions.size());
+        for (int i = 0; i < sessions.size(); i++) {
+            final int order = i;
+            final Session session = sessions.get(i);
+            sources.add(sessionService.startTimeOf(session).flatMapMany(startTime ->
+                    decodeHeaders(session, streamPager.range(session, timeRange(startTime, times))))
+                    // payloads are decoded (and memoized) by each session's own pipeline rather than after the merge
+                    .doOnNext(LazyMsg::msg)
+                    .map(header -> Tuples.of(order, session, header)));
+        }
+
+        final Comparator<Tuple3<Integer, Session, LazyMsg>> byTimestamp =
+                Comparator.<Tuple3<Integer, Session, LazyMsg>>comparingLong(it -> it.getT3().timestamp())
+                        .thenComparingInt(Tuple3::getT1);
+
+        return Flux.mergeOrdered(Math.max(1, replayPageSize), byTimestamp, toArray(sources))
+                .map(it -> Tuples.of(it.getT2(), it.getT3().msg()))
+                .filter(it -> it.getT2() != INVALID_MSG);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Flux<T>[] toArray(List<Flux<T>> fluxes) {
+        return fluxes.toArray(new Flux[0]);
+    }
+
+    /**
+     * Emits every message added to the session's stream from the given time onwards, followed by all messages that
+     * are added afterwards, like {@link #live(Session, Range)}. See {@link #replayTimes(Session, Range)} for how times
+     * are matched.
+     *
+     * @param session the session to follow
+     * @param from the time to start from, relative to the start of the session
+     * @return a flux of all messages from the given time onwards
+     */
+    public @NotNull Flux<Msg> liveFromTime(@NotNull Session session, @NotNull Duration from) {
+        return sessionService.startTimeOf(session).flatMapMany(startTime ->
+                liveStreamHub.live(session, inclusive(StreamIds.firstAt(startTime + from.toMillis())), LiveOptions.DEFAULT))
+                .map(StreamMsg::msg);
+    }
+
+    /**
+     * Counts the messages of a session per time window, grouped by port. Only message headers are read.
+     *
+     * For completed sessions every non-empty window is emitted once, in time order, and the result is cached. An
+     * aggregate at a width that is a multiple of an already cached width is merged from the cached windows without
+     * reading the session again, so zooming out of a timeline is free.
+     *
+     * For running sessions the aggregate is kept up to date as messages arrive. Windows are re-emitted (with their
+     * complete counts so far) whenever they change, at most every {@link #LIVE_AGGREGATE_INTERVAL}, so subscribers
+     * should replace any previously received window with the same start.
+     *
+     * @param session the session to aggregate
+     * @param resolution the width of each window, at least one millisecond
+     * @param grouping how the messages of a window are grouped
+     * @return a flux of the windows of the session
+     */
+    public @NotNull Flux<WindowCounts> aggregate(@NotNull Session session, @NotNull Duration resolution, @NotNull MsgGrouping grouping) {
+        final long width = resolution.toMillis();
+        if (width <= 0) {
+            return Flux.error(new IllegalArgumentException("resolution must be at least 1ms but was " + resolution));
+        }
+
+        return sessionService.statusOf(session).flatMapMany(status -> {
+            if (status == SessionStatus.COMPLETED) {
+                return aggregateCompleted(session, width, grouping).flatMapIterable(windows -> windows);
+            }
+
+            return Flux.defer(() -> {
+                final WindowAccumulator accumulator = new WindowAccumulator(width, grouping);
+                return liveHeaders(session, Range.unbounded())
+                        .bufferTimeout(LIVE_AGGREGATE_BATCH_SIZE, LIVE_AGGREGATE_INTERVAL)
+                        .concatMapIterable(headers -> {
+                            headers.forEach(accumulator::add);
+                            return accumulator.drain();
+                        });
+            });
+        });
+    }
+
+    private Mono<List<WindowCounts>> aggregateCompleted(Session session, long width, MsgGrouping grouping) {
+        return Mono.defer(() -> {
+            final NavigableMap<Long, List<WindowCounts>> widths = aggregateCache.get(
+                    session.getName() + "/" + grouping, key -> new ConcurrentSkipListMap<>());
+
+            final List<WindowCounts> cached = widths.get(width);
+            if (cached != null) {
+                return Mono.just(cached);
+            }
+
+            final WindowAccumulator accumulator = new WindowAccumulator(width, grouping);
+
+            // the coarsest cached aggregate whose windows evenly divide the requested ones is the cheapest to merge
+            for (Map.Entry<Long, List<WindowCounts>> finer : widths.headMap(width, false).descendingMap().entrySet()) {
+                if (width % finer.getKey() == 0) {
+                    finer.getValue().forEach(accumulator::add);
+                    final List<WindowCounts> merged = accumulator.drain();
+                    widths.put(width, merged);
+                    return Mono.just(merged);
+                }
+            }
+
+            return replayHeaders(session, Range.unbounded())
+                    .doOnNext(accumulator::add)
+                    .then(Mono.fromCallable(accumulator::drain))
+                    .doOnNext(windows -> widths.put(width, windows));
+        });
+    }
+
+    /**
+     * Replays up to count messages starting at the message with the given ordinal (its zero-based position in the
+     * session's stream). The first call for a large ordinal builds a sparse checkpoint index up to that position,
+     * after which any seek into that part of the stream is a single bounded XRANGE.
+     *
+     * @param session the session to replay
+     * @param ordinal the position of the first message to replay
+     * @param count the maximum number of messages to replay
+     * @return a flux of at most count messages starting at the given ordinal
+     */
+    public @NotNull Flux<Msg> replayFrom(@NotNull Session session, long ordinal, int count) {
+        final int offset = (int) (ordinal % OrdinalIndex.CHECKPOINT_INTERVAL);
+        final int limit = (int) Math.min(Integer.MAX_VALUE, (long) offset + count);
+
+        return ordinalIndex.checkpoint(session, ordinal).flatMapMany(checkpoint ->
+                sessionService.startTimeOf(session).flatMapMany(startTime ->
+                    streamOps.range(session.getName() + "-stream",
+                            Range.of(inclusive(StreamIds.unpack(checkpoint)), unbounded()), Limit.limit().count(limit))
+                        .skip(offset)
+                        .transform(flux -> RECORD_TRANSFORMER(startTime, session, flux))))
+                .map(StreamMsg::msg);
+    }
+
+    /**
+     * Returns a snapshot of the hit, miss and eviction statistics of the cache of decoded message payloads.
+     *
+     * @return the statistics of the parse cache since this service was created
+     */
+    public @NotNull CacheStats parseCacheStats() {
+        return parseCache.stats();
+    }
+
+    /**
+     * Emits the newest count messages of a session in forward order, each paired with its ordinal (its zero-based
+     * position in the session's stream), optionally followed by every message added afterwards.
+     *
+     * The newest records and the length of the stream are read atomically with a single script, so opening the tail
+     * of a session costs one small round trip no matter how long the session is. Following continues from the newest
+     * record read, without gaps or duplicates. Followed records are read by their own poller rather than the shared
+     * live tail, so their ordinals are counted before undecodable records are dropped and stay exact.
+     *
+     * @param session the session to read the tail of
+     * @param count the maximum number of existing messages to emit
+     * @param follow whether to keep emitting messages as they are added until the session stops
+     * @return a flux of (ordinal, message) pairs in stream order
+     */
+    public @NotNull Flux<Tuple2<Long, Msg>> tail(@NotNull Session session, int count, boolean follow) {
+        if (count <= 0) {
+            return Flux.error(new IllegalArgumentException("count must be positive but was " + count));
+        }
+
+        // one more record than requested is read, since the newest record of a completed session is its "stop" record
+        final int read = (int) Math.min(Integer.MAX_VALUE, count + 1L);
+
+        return sessionService.startTimeOf(session).flatMapMany(startTime ->
+                tailReader.read(session.getName() + "-stream", read).flatMapMany(tail -> {
+                    final List<MapRecord<String, String, String>> records = tail.records();
+                    final long first = tail.length() - records.size();
+                    final RedisServiceMetrics.DecodeMeters meters = metrics.decodeMeters(session);
+
+                    // the records before the "stop" record (if any) are messages, of which only the newest count are
+                    // emitted
+                    int end = 0;
+                    while (end < records.size() && records.get(end).getValue().get("stop") == null) {
+                        end++;
+                    }
+                    final boolean stopped = end < records.size();
+
+                    final List<Tuple2<Long, Msg>> newest = new ArrayList<>(Math.min(end, count));
+                    for (int i = Math.max(0, end - count); i < end; i++) {
+                        final MapRecord<String, String, String> record = records.get(i);
+                        final StreamMsg msg = decodeRecord(startTime, session, record, meters);
+                        if (msg != RecordDecoder.INVALID) {
+                            newest.add(Tuples.of(first + i, msg.msg()));
+                        }
+                    }
+
+                    if (!follow || stopped) {
+                        return Flux.fromIterable(newest);
+                    }
+
+                    final String key = session.getName() + "-stream";
+                    final String from = records.isEmpty()
+                            ? StreamIds.MIN
+                            : records.get(records.size() - 1).getId().getValue();
+                    final Flux<Tuple2<Long, Msg>> followed = streamTailer.tail(key, from)
+                            .takeWhile(record -> record.getValue().get("stop") == null)
+                            .index()
+                            .concatMap(indexed -> {
+                                final StreamMsg msg = decodeRecord(startTime, session, indexed.getT2(), meters);
+                                return msg != RecordDecoder.INVALID
+                                        ? Mono.just(Tuples.of(tail.length() + indexed.getT1(), msg.msg()))
+                                        : Mono.<Tuple2<Long, Msg>>empty();
+                            });
+                    return Flux.fromIterable(newest).concatWith(followed);
+                }));
     }
 
     @Override
@@ -147,66 +668,78 @@ public class MsgServiceRedis implements MsgService {
         return streamOps.size(session.getName() + "-stream");
     }
 
-    private Flux<Msg> RECORD_TRANSFORMER(long startTime, Session session, Flux<MapRecord<String, String, String>> flux) {
-        return flux
-                .map(Record::getValue)
-                // if the message contains a "stop" key then it is a special indicator that the session
-                // has stopped. This message will contain a "stop" field with a reason string and a "timestamp"
-                .takeWhile(value -> value.get("stop") == null)
-                .index().map(indexedValue -> {
-            final long id = indexedValue.getT1();
+    private Flux<StreamMsg> decode(Session session, Flux<MapRecord<String, String, String>> flux) {
+        return sessionService.startTimeOf(session).flatMapMany(startTime ->
+                RECORD_TRANSFORMER(startTime, session, flux));
+    }
 
-            final Msg cachedMsg = ServiceCaches.get(session, id);
-            if (cachedMsg != null) {
-                return cachedMsg;
-            }
+    private Flux<LazyMsg> decodeHeaders(Session session, Flux<MapRecord<String, String, String>> flux) {
+        return sessionService.startTimeOf(session).flatMapMany(startTime ->
+                flux.takeWhile(record -> record.getValue().get("stop") == null)
+                        .<LazyMsg>handle((record, sink) -> {
+                            final LazyMsg header = recordDecoder.decodeHeader(startTime, session, record);
+                            if (header != null) {
+                                sink.next(header);
+                            }
+                        }));
+    }
 
-            try {
-                final var it = indexedValue.getT2();
+    private Flux<StreamMsg> RECORD_TRANSFORMER(long startTime, Session session, Flux<MapRecord<String, String, String>> flux) {
+        // if the message contains a "stop" key then it is a special indicator that the session
+        // has stopped. This message will contain a "stop" field with a reason string and a "timestamp"
+        final Flux<MapRecord<String, String, String>> records = flux.takeWhile(record -> record.getValue().get("stop") == null);
+        final RedisServiceMetrics.DecodeMeters meters = metrics.decodeMeters(session);
 
-                long ts = Long.parseLong(it.getOrDefault("timestamp", "-1"));
-                if (ts != -1) {
-                    ts -= startTime;
-                } else {
-                    log.error("Unable to parse timestamp of msg id={} data={}.", id, it);
-                    return INVALID_MSG;
-                }
+        if (decodeScheduler == null) {
+            return records.map(record -> decodeRecord(startTime, session, record, meters))
+                    .filter(msg -> msg != RecordDecoder.INVALID);
+        }
 
-                final int srcId = Integer.parseInt(it.getOrDefault("src", "-1"));
-                final UPort src;
-                if (srcId != -1) {
-                    src = artUtils.getPort(srcId);
-                } else {
-                    log.error("Unable to parse src port of msg id={} data={}.", id, it);
-                    return INVALID_MSG;
-                }
+        // decoding is moved off of the redis client's I/O thread. flatMapSequential preserves stream order while
+        // allowing up to decodeParallelism records to be decoded at once, and only requests more records from
+        // upstream as decoded messages are consumed
+        return records.flatMapSequential(record ->
+                        Mono.fromCallable(() -> decodeRecord(startTime, session, record, meters)).subscribeOn(decodeScheduler),
+                        decodeParallelism * DECODE_QUEUE_DEPTH, 1)
+                .filter(msg -> msg != RecordDecoder.INVALID);
+    }
 
-                final int dstId = Integer.parseInt(it.getOrDefault("dst", "-1"));
-                final UPort dst;
-                if (dstId != -1) {
-                    dst = artUtils.getPort(dstId);
-                } else {
-                    log.error("Unable to parse dst port of msg id={} data={}.", id, it);
-                    return INVALID_MSG;
-                }
+    private StreamMsg decodeRecord(long startTime, Session session, MapRecord<String, String, String> record,
+                                   RedisServiceMetrics.DecodeMeters meters) {
+        final long start = System.nanoTime();
+        final StreamMsg msg = recordDecoder.decode(startTime, session, record);
+        meters.record(System.nanoTime() - start, msg == RecordDecoder.INVALID);
+        return msg;
+    }
 
-                final String data = it.getOrDefault("data", "");
-                final DataContent dataContent = parseCache.get(data, json -> inspectionBlueprint.deserializer().apply(json));
-                if (dataContent == null) {
-                    log.error("Unable to parse data content of msg id={} data={}.", id, it);
-                    return INVALID_MSG;
-                }
+    private Msg createMsg(int srcId, int dstId, DataContent dataContent, long timestamp, long uid) {
+        final UPort src = artUtils.getPort(srcId);
+        final UPort dst = artUtils.getPort(dstId);
+        return new Msg(src, dst, artUtils.getBridge(src), artUtils.getBridge(dst), dataContent, timestamp, uid);
+    }
 
-                final Msg msg = new Msg(src, dst, artUtils.getBridge(src), artUtils.getBridge(dst), dataContent, ts, id);
-                ServiceCaches.put(session, id, msg);
-                return msg;
+    /**
+     * Converts a {@link Range} of times relative to the start of a session into a redis-friendly {@link Range} of
+     * stream ids that contains exactly the ids created within those times. Only inclusive id bounds are produced.
+     *
+     * @param startTime the start time of the session
+     * @param times the range of times to convert
+     * @return the resulting redis-friendly {@link Range} of Strings
+     */
+    private static Range<String> timeRange(long startTime, @NotNull Range<Duration> times) {
+        final Range.Bound<Duration> lower = times.getLowerBound();
+        final Range.Bound<Duration> upper = times.getUpperBound();
 
-            } catch (NumberFormatException | NoSuchElementException e) {
-                log.error("Unable to parse incoming message", e);
-            }
+        final Range.Bound<String> from = lower.getValue()
+                .map(time -> startTime + time.toMillis() + (lower.isInclusive() ? 0 : 1))
+                .map(timestamp -> inclusive(StreamIds.firstAt(timestamp)))
+                .orElse(unbounded());
+        final Range.Bound<String> to = upper.getValue()
+                .map(time -> startTime + time.toMillis() - (upper.isInclusive() ? 0 : 1))
+                .map(timestamp -> inclusive(StreamIds.lastAt(timestamp)))
+                .orElse(unbounded());
 
-            return INVALID_MSG;
-        }).filter(msg -> msg != INVALID_MSG);
+        return Range.of(from, to);
     }
 
     /**
@@ -242,13 +775,4 @@ public class MsgServiceRedis implements MsgService {
         return recordId.timestamp() + "-" + recordId.sequence();
     }
 
-    /*
-     * There are many exceptions, but this approximates string size.
-     */
-    private static int approxMinMemUsageBytes(String string) {
-        // formula from:
-        // https://www.javamex.com/tutorials/memory/string_memory_usage.shtml
-        return 8 * (((2 * string.length()) + 35) / 8);
-    }
-
 }
\ No newline at end of file
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.sireum.hamr.inspector.services.Session;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.core.ReactiveStreamOperations;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A sparse, per-session index from message ordinals (a message's zero-based position in its session's stream) to
+ * stream ids.
+ *
+ * Redis streams can only be ranged by id, so finding the n-th message normally means reading every message before it.
+ * This index remembers the id of every {@link #CHECKPOINT_INTERVAL}-th message, so finding the n-th message only
+ * requires reading at most {@link #CHECKPOINT_INTERVAL} messages from the nearest checkpoint. Checkpoints are created
+ * lazily (only as far as the largest ordinal requested) and, because streams are append-only, never change.
+ */
+@Slf4j
+final class OrdinalIndex {
+
+    static final int CHECKPOINT_INTERVAL = 1024;
+
+    /**
+     * The number of checkpoints created per XRANGE while extending the index.
+     */
+    private static final int CHECKPOINTS_PER_PAGE = 8;
+
+    private final Map<Session, Checkpoints> sessions = new ConcurrentHashMap<>();
+
+    private final ReactiveStreamOperations<String, String, String> streamOps;
+
+    OrdinalIndex(ReactiveStreamOperations<String, String, String> streamOps) {
+        this.streamOps = streamOps;
+    }
+
+    /**
+     * Returns the packed id (see {@link StreamIds#pack(String)}) of the nearest checkpoint at or before the given
+     * ordinal. The checkpoint's own ordinal is always {@code ordinal - (ordinal % CHECKPOINT_INTERVAL)}.
+     *
+     * @param session the session to seek in
+     * @param ordinal the ordinal to seek to
+     * @return the packed id of the nearest checkpoint, or empty if the stream is not long enough to contain it
+     */
+    @NotNull
+    Mono<Long> checkpoint(@NotNull Session session, long ordinal) {
+        if (ordinal < 0) {
+            return Mono.error(new IllegalArgumentException("ordinal must be non-negative but was " + ordinal));
+        }
+        final long index = ordinal / CHECKPOINT_INTERVAL;
+        if (index > Integer.MAX_VALUE) {
+            return Mono.error(new IllegalArgumentException("ordinal is too large: " + ordinal));
+        }
+        return sessions.computeIfAbsent(session, Checkpoints::new).checkpoint((int) index);
+    }
+
+    private final class Checkpoints {
+
+        private final String key;
+
+        private long[] uids = new long[16];
+
+        private int size = 0;
+
+        /**
+         * The in-flight extension of this index (if any), shared so concurrent seeks do not read the same page twice.
+         */
+        private Mono<Boolean> extension = null;
+
+        private Checkpoints(Session session) {
+            this.key = session.getName() + "-stream";
+        }
+
+        private Mono<Long> checkpoint(int index) {
+            return Mono.defer(() -> {
+                final long uid = get(index);
+                if (uid != -1L) {
+                    return Mono.just(uid);
+                }
+                return extend().flatMap(grew -> grew ? checkpoint(index) : Mono.empty());
+            });
+        }
+
+        private synchronized long get(int index) {
+            return index < size ? uids[index] : -1L;
+        }
+
+        private synchronized Mono<Boolean> extend() {
+            if (extension == null) {
+                final int from = size;
+
+                // the first checkpoint is simply the first record, every other page starts after the last checkpoint
+                final Range<String> range = from == 0
+                        ? Range.unbounded()
+                        : Range.of(Range.Bound.inclusive(StreamIds.next(StreamIds.unpack(uids[from - 1]))), Range.Bound.unbounded());
+                final int count = from == 0 ? 1 : CHECKPOINT_INTERVAL * CHECKPOINTS_PER_PAGE;
+
+                extension = streamOps.range(key, range, Limit.limit().count(count))
+                        .index()
+                        .filter(indexed -> from == 0 || (indexed.getT1() + 1) % CHECKPOINT_INTERVAL == 0)
+                        .map(indexed -> StreamIds.pack(indexed.getT2().getId().getValue()))
+                        .collectList()
+                        .map(this::append)
+                        .doOnError(throwable -> clearExtension())
+                        .cache();
+            }
+            return extension;
+        }
+
+        /**
+         * Appends the checkpoints read by the current extension and ends it. The extension must end here (rather than
+         * after it has been delivered) since the cached extension delivers its result before any later operator runs,
+         * and a seek that is still short of its checkpoint immediately asks for another extension.
+         */
+        private synchronized boolean append(List<Long> checkpoints) {
+            extension = null;
+            if (size + checkpoints.size() > uids.length) {
+                uids = Arrays.copyOf(uids, Math.max(uids.length * 2, size + checkpoints.size()));
+            }
+            for (long uid : checkpoints) {
+                uids[size++] = uid;
+            }
+            log.trace("Ordinal index of {} extended to {} checkpoints.", key, size);
+            return !checkpoints.isEmpty();
+        }
+
+        private synchronized void clearExtension() {
+            extension = null;
+        }
+    }
+
+}
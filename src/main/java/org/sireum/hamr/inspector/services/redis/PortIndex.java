@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import org.jetbrains.annotations.NotNull;
+import org.sireum.hamr.inspector.services.Session;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A secondary index from port ids to the ids of the records of a session's stream that have that port as their src or
+ * dst.
+ *
+ * Each port of a session has its own index stream "&lt;session&gt;-port-&lt;id&gt;" holding an empty entry for every
+ * record that touches the port, under the same id as the original record. Since consecutive ids and identical fields
+ * are delta-encoded by redis, an entry costs only a few bytes. Reading the traffic of a port is a (paged) XRANGE over
+ * its index stream followed by one script per page that reads the original records by id, so the cost no longer
+ * depends on how small a fraction of the session's stream the port makes up.
+ *
+ * The index is built incrementally. Its state is kept in the hash "&lt;session&gt;-port-index": the id of the last
+ * indexed record ("last"), so each update only reads the records added since the previous one, the id of the first
+ * record of the stream the index was built from ("first"), and the key of every index stream of the session. Each
+ * batch of entries is written together with the cursor by a single script, so an update interrupted by a restart
+ * resumes exactly where it stopped.
+ *
+ * Besides the three keys of a session ("n-start", "n-stop" and "n-stream"), the index therefore adds the keys
+ * "n-port-index" and "n-port-&lt;id&gt;". If a session is deleted without them and its number is later reused, the
+ * new stream starts with a different record, so the stale index is detected by its "first" id, deleted, and rebuilt
+ * from the start. Sessions that were imported or never queried by port simply have no index until the first update.
+ */
+final class PortIndex {
+
+    /**
+     * Returns the cursor of the index in KEYS[1] if it was built from the stream in KEYS[2]. Otherwise the index is
+     * stale, missing or a plain cursor of an older version, so its index streams are deleted (if known) and it is
+     * restarted from {@link StreamIds#MIN}.
+     */
+    private static final RedisScript<String> CURSOR_SCRIPT = RedisScript.of(String.join("\n",
+            "local first = redis.call('XRANGE', KEYS[2], '-', '+', 'COUNT', 1)[1]",
+            "if first == nil then",
+            "  return '0-0'",
+            "end",
+            "local hash = redis.call('TYPE', KEYS[1])['ok'] == 'hash'",
+            "if hash and redis.call('HGET', KEYS[1], 'first') == first[1] then",
+            "  return redis.call('HGET', KEYS[1], 'last') or '0-0'",
+            "end",
+            "if hash then",
+            "  for _, field in ipairs(redis.call('HKEYS', KEYS[1])) do",
+            "    if field ~= 'first' and field ~= 'last' then",
+            "      redis.call('DEL', field)",
+            "    end",
+            "  end",
+            "end",
+            "redis.call('DEL', KEYS[1])",
+            "redis.call('HSET', KEYS[1], 'first', first[1], 'last', '0-0')",
+            "return '0-0'"), String.class);
+
+    /**
+     * Adds one index entry per KEYS[i] / ARGV[i] pair (i &gt; 1) and then advances the cursor in KEYS[1] to ARGV[1].
+     * Entries at or before the current cursor are skipped, so batches written concurrently by another instance are
+     * never written twice. Every index stream written to is recorded in KEYS[1], so a stale index can be deleted.
+     * Returns the cursor.
+     */
+    private static final RedisScript<String> UPDATE_SCRIPT = RedisScript.of(String.join("\n",
+            "local function after(a, b)",
+            "  local am, as = string.match(a, '(%d+)-(%d+)')",
+            "  local bm, bs = string.match(b, '(%d+)-(%d+)')",
+            "  am, as, bm, bs = tonumber(am), tonumber(as), tonumber(bm), tonumber(bs)",
+            "  return am > bm or (am == bm and as > bs)",
+            "end",
+            "local cursor = redis.call('HGET', KEYS[1], 'last') or '0-0'",
+            "local recorded = {}",
+            "for i = 2, #KEYS do",
+            "  if after(ARGV[i], cursor) then",
+            "    redis.call('XADD', KEYS[i], ARGV[i], 'i', '')",
+            "    if not recorded[KEYS[i]] then",
+            "      redis.call('HSET', KEYS[1], KEYS[i], '')",
+            "      recorded[KEYS[i]] = true",
+            "    end",
+            "  end",
+            "end",
+            "if after(ARGV[1], cursor) then",
+            "  redis.call('HSET', KEYS[1], 'last', ARGV[1])",
+            "  cursor = ARGV[1]",
+            "end",
+            "return cursor"), String.class);
+
+    /**
+     * Reads the records of KEYS[1] with the ids in ARGV, skipping ids that no longer exist, as a flat reply (see
+     * {@link TailReader#parseRecords}).
+     */
+    private static final RedisScript<List<Object>> FETCH_SCRIPT = TailReader.multiBulkScript(
+            "local out = {}",
+            "for _, id in ipairs(ARGV) do",
+            "  for _, record in ipairs(redis.call('XRANGE', KEYS[1], id, id)) do",
+            "    out[#out + 1] = record[1]",
+            "    out[#out + 1] = tostring(#record[2] / 2)",
+            "    for _, value in ipairs(record[2]) do",
+            "      out[#out + 1] = value",
+            "    end",
+            "  end",
+            "end",
+            "return out");
+
+    private static final Comparator<MapRecord<String, String, String>> STREAM_ORDER =
+            Comparator.comparingLong(record -> StreamIds.pack(record.getId().getValue()));
+
+    private final ReactiveRedisTemplate<String, String> template;
+
+    private final StreamPager streamPager;
+
+    private final int batchSize;
+
+    /**
+     * The in-flight update of each session's index (if any), shared so concurrent queries never index a record twice.
+     */
+    private final Map<Session, Mono<String>> updates = new ConcurrentHashMap<>();
+
+    PortIndex(ReactiveRedisTemplate<String, String> template, StreamPager streamPager, int batchSize) {
+        this.template = template;
+        this.streamPager = streamPager;
+        this.batchSize = batchSize > 0 ? batchSize : 1024;
+    }
+
+    /**
+     * Indexes every record added to the session's stream since the last update.
+     *
+     * @param session the session to index
+     * @return the id of the last indexed record, or {@link StreamIds#MIN} if the stream has no records yet. This is
+     * never the id of the session's "stop" record.
+     */
+    @NotNull
+    Mono<String> update(@NotNull Session session) {
+        return Mono.defer(() -> updates.computeIfAbsent(session, this::newUpdate));
+    }
+
+    private Mono<String> newUpdate(Session session) {
+        final AtomicReference<Mono<String>> self = new AtomicReference<>();
+        final List<String> keys = List.of(cursorKey(session), session.getName() + "-stream");
+        final Mono<String> update = template.execute(CURSOR_SCRIPT, keys).next()
+                .defaultIfEmpty(StreamIds.MIN)
+                .flatMap(cursor -> streamPager.range(session, Range.of(Range.Bound.inclusive(StreamIds.next(cursor)), Range.Bound.unbounded()))
+                        .buffer(batchSize)
+                        .concatMap(batch -> index(session, batch))
+                        .last(cursor))
+                // only this update may be removed, a newer one may already have replaced it
+                .doFinally(signal -> updates.remove(session, self.get()))
+                .cache();
+        self.set(update);
+        return update;
+    }
+
+    /**
+     * Reads the records of a range of the session's stream whose src or dst is one of the given ports, in stream
+     * order. Only records that have already been indexed are read, see {@link #update(Session)}.
+     *
+     * @param session the session to read
+     * @param portIds the ids of the ports to read the records of
+     * @param range a redis-friendly range of stream ids
+     * @return the matching records, each exactly once
+     */
+    @NotNull
+    Flux<MapRecord<String, String, String>> range(@NotNull Session session, @NotNull Collection<Integer> portIds,
+                                                   @NotNull Range<String> range) {
+        final List<Flux<MapRecord<String, String, String>>> ports = new ArrayList<>(portIds.size());
+        for (int portId : portIds) {
+            ports.add(streamPager.range(indexKey(session, Integer.toString(portId)), range));
+        }
+
+        // a record whose src and dst are both requested is in both index streams, and since both entries have the
+        // same id they are always adjacent after the ordered merge
+        final String key = session.getName() + "-stream";
+        return Flux.mergeOrdered(STREAM_ORDER, toArray(ports))
+                .map(entry -> entry.getId().getValue())
+                .distinctUntilChanged()
+                .buffer(batchSize)
+                .concatMap(ids -> template.execute(FETCH_SCRIPT, List.of(key), ids)
+                        .cast(Object.class)
+                        .flatMapIterable(TailReader::flatten)
+                        .collectList()
+                        .flatMapIterable(values -> TailReader.parseRecords(key, values, 0)));
+    }
+
+    private Mono<String> index(Session session, List<MapRecord<String, String, String>> batch) {
+        // the cursor never moves past a session's "stop" record, so live subscribers resuming after the indexed part
+        // of a stream still read the "stop" record (and complete) instead of waiting for records that never come
+        final List<MapRecord<String, String, String>> records = new ArrayList<>(batch.size());
+        for (MapRecord<String, String, String> record : batch) {
+            if (record.getValue().get("stop") == null) {
+                records.add(record);
+            }
+        }
+        if (records.isEmpty()) {
+            return Mono.empty();
+        }
+
+        final List<String> keys = new ArrayList<>(records.size() * 2 + 1);
+        final List<String> args = new ArrayList<>(records.size() * 2 + 1);
+        keys.add(cursorKey(session));
+        args.add(records.get(records.size() - 1).getId().getValue());
+        for (MapRecord<String, String, String> record : records) {
+            final String src = record.getValue().get("src");
+            final String dst = record.getValue().get("dst");
+            if (src == null || dst == null) {
+                continue;
+            }
+            final String id = record.getId().getValue();
+            keys.add(indexKey(session, src));
+            args.add(id);
+            if (!src.equals(dst)) {
+                keys.add(indexKey(session, dst));
+                args.add(id);
+            }
+        }
+
+        return template.execute(UPDATE_SCRIPT, keys, args).next();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Flux<MapRecord<String, String, String>>[] toArray(List<Flux<MapRecord<String, String, String>>> fluxes) {
+        return fluxes.toArray(new Flux[0]);
+    }
+
+    private static String indexKey(Session session, String portId) {
+        return session.getName() + "-port-" + portId;
+    }
+
+    private static String cursorKey(Session session) {
+        return session.getName() + "-port-index";
+    }
+
+}
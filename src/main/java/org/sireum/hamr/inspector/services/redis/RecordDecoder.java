@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import art.DataContent;
+import com.github.benmanes.caffeine.cache.Cache;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.sireum.hamr.inspector.common.Msg;
+import org.sireum.hamr.inspector.services.Session;
+import org.springframework.data.redis.connection.stream.MapRecord;
+
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * Decodes a single stream record (with "timestamp", "src", "dst" and "data" fields) into a {@link StreamMsg}.
+ *
+ * Decoded messages are cached in {@link ServiceCaches} and decoded payloads in the parse cache, so decoding a record
+ * that was recently decoded is only a few map lookups. Records can also be decoded header-first into a {@link LazyMsg},
+ * which decodes its payload through this decoder on first access.
+ */
+@Slf4j
+final class RecordDecoder {
+
+    /**
+     * Returned in place of records that cannot be decoded, always filtered out before reaching subscribers.
+     */
+    static final StreamMsg INVALID = new StreamMsg(-1, MsgServiceRedis.INVALID_MSG);
+
+    /**
+     * Creates a {@link Msg} from the port ids and decoded contents of a record.
+     */
+    @FunctionalInterface
+    interface MsgFactory {
+        @NotNull
+        Msg create(int srcId, int dstId, @NotNull DataContent dataContent, long timestamp, long uid);
+    }
+
+    private final Cache<ContentKey, DataContent> parseCache;
+
+    private final Function<String, DataContent> deserializer;
+
+    private final MsgFactory msgFactory;
+
+    RecordDecoder(Cache<ContentKey, DataContent> parseCache, Function<String, DataContent> deserializer, MsgFactory msgFactory) {
+        this.parseCache = parseCache;
+        this.deserializer = deserializer;
+        this.msgFactory = msgFactory;
+    }
+
+    /**
+     * @param startTime the start time of the session, which timestamps are made relative to
+     * @param session the session the record belongs to
+     * @param record the record to decode
+     * @return the decoded message, or {@link #INVALID} if the record could not be decoded
+     */
+    @NotNull
+    StreamMsg decode(long startTime, @NotNull Session session, @NotNull MapRecord<String, String, String> record) {
+        try {
+            // ids are derived from the record's stream id (not its position in the flux) so the same message
+            // always has the same id regardless of which range it was read from or in which direction
+            final long id = StreamIds.pack(record.getId().getValue());
+
+            final Msg cachedMsg = ServiceCaches.get(session, id);
+            if (cachedMsg != null) {
+                return new StreamMsg(id, cachedMsg);
+            }
+
+            final LazyMsg header = decodeHeader(startTime, session, id, record);
+            if (header == null) {
+                return INVALID;
+            }
+
+            final Msg msg = header.msg();
+            if (msg == MsgServiceRedis.INVALID_MSG) {
+                log.error("Unable to parse data content of msg id={} data={}.", id, record.getValue());
+                return INVALID;
+            }
+
+            return new StreamMsg(id, msg);
+
+        } catch (NumberFormatException | NoSuchElementException e) {
+            log.error("Unable to parse incoming message", e);
+        }
+
+        return INVALID;
+    }
+
+    /**
+     * Decodes only the header of a record, leaving its payload to be decoded on first access.
+     *
+     * @param startTime the start time of the session, which timestamps are made relative to
+     * @param session the session the record belongs to
+     * @param record the record to decode
+     * @return the decoded header, or null if the header could not be decoded
+     */
+    @Nullable
+    LazyMsg decodeHeader(long startTime, @NotNull Session session, @NotNull MapRecord<String, String, String> record) {
+        try {
+            return decodeHeader(startTime, session, StreamIds.pack(record.getId().getValue()), record);
+        } catch (NumberFormatException | NoSuchElementException e) {
+            log.error("Unable to parse incoming message", e);
+        }
+
+        return null;
+    }
+
+    @Nullable
+    private LazyMsg decodeHeader(long startTime, Session session, long id, MapRecord<String, String, String> record) {
+        final var it = record.getValue();
+
+        long ts = Long.parseLong(it.getOrDefault("timestamp", "-1"));
+        if (ts != -1) {
+            ts -= startTime;
+        } else {
+            log.error("Unable to parse timestamp of msg id={} data={}.", id, it);
+            return null;
+        }
+
+        final int srcId = Integer.parseInt(it.getOrDefault("src", "-1"));
+        if (srcId == -1) {
+            log.error("Unable to parse src port of msg id={} data={}.", id, it);
+            return null;
+        }
+
+        final int dstId = Integer.parseInt(it.getOrDefault("dst", "-1"));
+        if (dstId == -1) {
+            log.error("Unable to parse dst port of msg id={} data={}.", id, it);
+            return null;
+        }
+
+        return new LazyMsg(this, session, id, ts, srcId, dstId, it.getOrDefault("data", ""));
+    }
+
+    /**
+     * @param data the JSON payload of a record
+     * @return the (possibly cached) decoded payload, or null if it cannot be decoded
+     */
+    @Nullable
+    DataContent parse(@NotNull String data) {
+        return parseCache.get(ContentKey.of(data), key -> deserializer.apply(data));
+    }
+
+    @NotNull
+    Msg create(int srcId, int dstId, @NotNull DataContent dataContent, long timestamp, long uid) {
+        return msgFactory.create(srcId, dstId, dataContent, timestamp, uid);
+    }
+
+}
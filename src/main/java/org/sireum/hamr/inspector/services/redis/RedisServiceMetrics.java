@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.sireum.hamr.inspector.services.Session;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the Micrometer meters used by the redis services.
+ *
+ * Meters are registered to the application's {@link MeterRegistry} when one exists (for example when spring boot
+ * actuator is on the classpath), otherwise to Micrometer's global registry.
+ *
+ * Range, live read, and injection meters are shared by all sessions, so their number is bounded no matter how many
+ * sessions are read. Only meters whose lifetime is tracked are tagged by session: decode meters, which are removed
+ * once they have not been used for {@link #DECODE_METERS_IDLE_TIMEOUT}, and the live record counter, which is owned
+ * and removed by the live tail of its session.
+ */
+@Slf4j
+@Component
+public class RedisServiceMetrics {
+
+    static final String SESSION_TAG = "session";
+
+    private final MeterRegistry registry;
+
+    private static final Duration DECODE_METERS_IDLE_TIMEOUT = Duration.ofMinutes(10);
+
+    private final Map<Session, DecodeMeters> decodeMeters = new ConcurrentHashMap<>();
+
+    /**
+     * The {@link System#nanoTime()} at which idle decode meters are removed next.
+     */
+    private volatile long nextSweep = System.nanoTime() + DECODE_METERS_IDLE_TIMEOUT.toNanos();
+
+    public RedisServiceMetrics(ObjectProvider<MeterRegistry> registry) {
+        this.registry = registry.getIfAvailable(() -> Metrics.globalRegistry);
+    }
+
+    @NotNull
+    public MeterRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * @return the timer of XRANGE / XREVRANGE round trips
+     */
+    @NotNull
+    Timer rangeLatency(boolean reverse) {
+        return Timer.builder("inspector.redis.stream.range")
+                .description("Round trip latency of XRANGE and XREVRANGE reads")
+                .tag("direction", reverse ? "reverse" : "forward")
+                .register(registry);
+    }
+
+    /**
+     * @return the distribution of the number of records returned per XRANGE / XREVRANGE
+     */
+    @NotNull
+    DistributionSummary rangeRecords() {
+        return DistributionSummary.builder("inspector.redis.stream.range.records")
+                .description("Records returned per XRANGE and XREVRANGE read")
+                .register(registry);
+    }
+
+    /**
+     * @return the counter of records received by the session's live poller, which the caller must remove from the
+     * {@link #registry()} once the poller has terminated
+     */
+    @NotNull
+    Counter liveRecords(@NotNull Session session) {
+        return Counter.builder("inspector.redis.live.records")
+                .description("Records received by live pollers")
+                .tag(SESSION_TAG, session.getName())
+                .register(registry);
+    }
+
+    /**
+     * @return the timer of XREAD round trips (including the time spent blocking) of live pollers
+     */
+    @NotNull
+    Timer liveReadLatency() {
+        return Timer.builder("inspector.redis.live.read")
+                .description("Round trip latency of blocking XREAD polls")
+                .register(registry);
+    }
+
+    /**
+     * @return the distribution of the number of records returned per XREAD of live pollers
+     */
+    @NotNull
+    DistributionSummary liveReadRecords() {
+        return DistributionSummary.builder("inspector.redis.live.read.records")
+                .description("Records returned per XREAD poll")
+                .register(registry);
+    }
+
+    @NotNull
+    DecodeMeters decodeMeters(@NotNull Session session) {
+        final long now = System.nanoTime();
+        if (now - nextSweep >= 0) {
+            nextSweep = now + DECODE_METERS_IDLE_TIMEOUT.toNanos();
+            removeIdleDecodeMeters(now - DECODE_METERS_IDLE_TIMEOUT.toNanos());
+        }
+
+        final DecodeMeters meters = decodeMeters.computeIfAbsent(session, DecodeMeters::new);
+        meters.lastUsed = now;
+        return meters;
+    }
+
+    private void removeIdleDecodeMeters(long idleSince) {
+        for (Session session : decodeMeters.keySet()) {
+            // removing within compute means a concurrent decodeMeters(session) either sees the old meters before they
+            // are removed from the registry or registers new ones after, never registers onto meters being removed
+            decodeMeters.computeIfPresent(session, (any, meters) -> {
+                if (meters.lastUsed - idleSince >= 0) {
+                    return meters;
+                }
+                registry.remove(meters.latency);
+                registry.remove(meters.invalid);
+                log.debug("Removed idle decode meters of session {}.", session.getName());
+                return null;
+            });
+        }
+    }
+
+    @NotNull
+    Timer sessionsScanLatency() {
+        return Timer.builder("inspector.redis.sessions.scan")
+                .description("Duration of listing all sessions")
+                .register(registry);
+    }
+
+    @NotNull
+    Timer injectionLatency() {
+        return Timer.builder("inspector.redis.injection.publish")
+                .description("Latency of publishing injections")
+                .register(registry);
+    }
+
+    /**
+     * The meters updated for every decoded record of a session.
+     */
+    final class DecodeMeters {
+
+        private final Timer latency;
+
+        private final Counter invalid;
+
+        private volatile long lastUsed;
+
+        private DecodeMeters(Session session) {
+            this.latency = Timer.builder("inspector.redis.decode")
+                    .description("Latency of decoding a stream record into a message")
+                    .tag(SESSION_TAG, session.getName())
+                    .register(registry);
+            this.invalid = Counter.builder("inspector.redis.decode.invalid")
+                    .description("Stream records that could not be decoded")
+                    .tag(SESSION_TAG, session.getName())
+                    .register(registry);
+        }
+
+        void record(long nanos, boolean isInvalid) {
+            lastUsed = System.nanoTime();
+            latency.record(nanos, TimeUnit.NANOSECONDS);
+            if (isInvalid) {
+                invalid.increment();
+            }
+        }
+    }
+
+}
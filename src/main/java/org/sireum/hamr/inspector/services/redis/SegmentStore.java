@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.sireum.hamr.inspector.services.Session;
+import org.sireum.hamr.inspector.services.SessionService;
+import org.sireum.hamr.inspector.services.SessionStatus;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * A local, read-only copy of completed sessions in memory-mapped segment files.
+ *
+ * Completed sessions never change, so once a session completes it is copied (in the background, after the first time
+ * it is replayed) into a directory of append-only segment files, and later replays are served from those instead of
+ * redis. Records are stored with their packed id, session-relative timestamp and port ids already parsed, followed by
+ * their raw JSON payload, which is only decoded if a message's payload is accessed (see {@link LazyMsg}).
+ *
+ * Each session directory holds:
+ * <ul>
+ *     <li>segment files "0.seg", "1.seg", ... of at most {@link #SEGMENT_SIZE} bytes, each a sequence of records
+ *     {@code [long uid][long timestamp][int src][int dst][int length][byte[length] payload]}</li>
+ *     <li>an "index" file with the uid, segment and offset of every {@link #INDEX_INTERVAL}-th record, which is used
+ *     to seek to the start of a range without scanning</li>
+ * </ul>
+ * Sessions are written to a temporary directory that is renamed once complete, so a session directory is only ever
+ * seen fully written. The stored sessions are listed once on startup and then tracked as they are written, so checking
+ * whether a session is stored never touches the file system.
+ *
+ * At most a bounded number of segments are mapped at once (plus the segment each in-progress replay is reading from).
+ * Payloads are copied out of their segment when read, so messages never keep a segment mapped after it is evicted.
+ */
+@Slf4j
+final class SegmentStore {
+
+    static final int SEGMENT_SIZE = 256 << 20;
+
+    static final int INDEX_INTERVAL = 1024;
+
+    private static final int RECORD_HEADER_SIZE = 8 + 8 + 4 + 4 + 4;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private final Path directory;
+
+    private final StreamPager streamPager;
+
+    private final SessionService sessionService;
+
+    private final RecordDecoder recordDecoder;
+
+    private final Map<Session, StoredSession> opened = new ConcurrentHashMap<>();
+
+    /**
+     * The sessions that have been fully written to this store.
+     */
+    private final Set<Session> stored = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The sessions currently being written, so a session is never written twice at once.
+     */
+    private final Map<Session, Boolean> writing = new ConcurrentHashMap<>();
+
+    /**
+     * The currently mapped segments, least recently used segments are unmapped (left to the garbage collector) first.
+     */
+    private final Cache<Path, MappedByteBuffer> mapped;
+
+    SegmentStore(Path directory, int mappedSegments, StreamPager streamPager, SessionService sessionService,
+                 RecordDecoder recordDecoder) {
+        this.directory = directory;
+        this.streamPager = streamPager;
+        this.sessionService = sessionService;
+        this.recordDecoder = recordDecoder;
+        this.mapped = Caffeine.newBuilder()
+                .maximumSize(Math.max(1, mappedSegments))
+                .build();
+        scan();
+    }
+
+    /**
+     * Lists the sessions that are already stored, and deletes the temporary directories of sessions whose writing was
+     * interrupted (for example by a crash), which are otherwise never cleaned up since they are never published.
+     */
+    private void scan() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> children = Files.list(directory)) {
+            children.filter(Files::isDirectory).forEach(child -> {
+                final String name = child.getFileName().toString();
+                if (name.startsWith(".")) {
+                    log.info("Removing incompletely stored session {}.", child);
+                    delete(child);
+                } else {
+                    stored.add(new Session(name));
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Unable to list stored sessions in {}.", directory, e);
+        }
+        log.info("Found {} stored sessions in {}.", stored.size(), directory);
+    }
+
+    private static void delete(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            log.warn("Unable to clean up {}.", directory, e);
+        }
+    }
+
+    /**
+     * @return true if the session has been fully written to this store
+     */
+    boolean contains(@NotNull Session session) {
+        return stored.contains(session);
+    }
+
+    /**
+     * Reads the messages of a range of a stored session in stream order. Only headers are decoded.
+     *
+     * @param session a session for which {@link #contains(Session)} is true
+     * @param range a redis-friendly range of stream ids
+     * @return the messages of the session within the range
+     */
+    @NotNull
+    Flux<LazyMsg> range(@NotNull Session session, @NotNull Range<String> range) {
+        return Mono.fromCallable(() -> opened.computeIfAbsent(session, this::open))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapMany(stored -> {
+                    final long floor = StreamIds.floorOf(range.getLowerBound());
+                    final long ceiling = StreamIds.ceilingOf(range.getUpperBound());
+
+                    return Flux.<LazyMsg, Cursor>generate(() -> stored.seek(floor), (cursor, sink) -> {
+                        while (true) {
+                            final LazyMsg msg = cursor.next(session);
+                            if (msg == null || msg.uid() > ceiling) {
+                                sink.complete();
+                                return cursor;
+                            }
+                            if (msg.uid() >= floor) {
+                                sink.next(msg);
+                                return cursor;
+                            }
+                        }
+                    });
+                });
+    }
+
+    /**
+     * Writes the session to this store in the background if it is completed and not yet stored or being stored.
+     */
+    void storeIfCompleted(@NotNull Session session) {
+        if (contains(session) || writing.putIfAbsent(session, Boolean.TRUE) != null) {
+            return;
+        }
+
+        sessionService.statusOf(session)
+                .filter(status -> status == SessionStatus.COMPLETED)
+                .flatMap(status -> sessionService.startTimeOf(session))
+                .flatMap(startTime -> write(session, startTime))
+                .doFinally(signal -> writing.remove(session))
+                .subscribe(
+                        any -> { },
+                        e -> log.warn("Unable to write session {} to the segment store.", session.getName(), e),
+                        () -> log.debug("Checked session {} for the segment store.", session.getName()));
+    }
+
+    private Mono<Void> write(Session session, long startTime) {
+        return Flux.using(() -> new SegmentWriter(session, startTime),
+                writer -> streamPager.range(session, Range.unbounded())
+                        .publishOn(Schedulers.boundedElastic())
+                        .takeWhile(record -> record.getValue().get("stop") == null)
+                        .doOnNext(writer::append)
+                        .concatWith(Mono.fromRunnable(writer::commit)),
+                SegmentWriter::close)
+                .then();
+    }
+
+    private StoredSession open(Session session) {
+        final Path sessionDirectory = sessionDirectory(session);
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(sessionDirectory.resolve("index")))) {
+            final int segments = in.readInt();
+            final int entries = in.readInt();
+            final long[] uids = new long[entries];
+            final int[] positions = new int[entries * 2];
+            for (int i = 0; i < entries; i++) {
+                uids[i] = in.readLong();
+                positions[2 * i] = in.readInt();
+                positions[2 * i + 1] = in.readInt();
+            }
+            return new StoredSession(sessionDirectory, segments, uids, positions);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open stored session " + session.getName(), e);
+        }
+    }
+
+    private MappedByteBuffer map(Path segment) {
+        return mapped.get(segment, path -> {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to map segment " + path, e);
+            }
+        });
+    }
+
+    private Path sessionDirectory(Session session) {
+        return directory.resolve(session.getName());
+    }
+
+    private final class StoredSession {
+
+        private final Path directory;
+
+        private final int segments;
+
+        private final long[] indexUids;
+
+        /**
+         * The segment and offset of each index entry, interleaved.
+         */
+        private final int[] indexPositions;
+
+        private StoredSession(Path directory, int segments, long[] indexUids, int[] indexPositions) {
+            this.directory = directory;
+            this.segments = segments;
+            this.indexUids = indexUids;
+            this.indexPositions = indexPositions;
+        }
+
+        /**
+         * @return a cursor at the last indexed record before the given uid, from which at most
+         * {@link #INDEX_INTERVAL} records have to be skipped
+         */
+        private Cursor seek(long uid) {
+            int entry = Arrays.binarySearch(indexUids, uid);
+            if (entry < 0) {
+                entry = -entry - 2;
+            }
+            return entry < 0
+                    ? new Cursor(this, 0, 0)
+                    : new Cursor(this, indexPositions[2 * entry], indexPositions[2 * entry + 1]);
+        }
+
+        private ByteBuffer segment(int segment) {
+            return map(directory.resolve(segment + ".seg"));
+        }
+    }
+
+    private final class Cursor {
+
+        private final StoredSession stored;
+
+        private int segment;
+
+        private int offset;
+
+        @Nullable
+        private ByteBuffer buffer;
+
+        private Cursor(StoredSession stored, int segment, int offset) {
+            this.stored = stored;
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        @Nullable
+        private LazyMsg next(Session session) {
+            while (buffer == null || offset >= buffer.limit()) {
+                if (buffer != null) {
+                    segment++;
+                    offset = 0;
+                }
+                if (segment >= stored.segments) {
+                    return null;
+                }
+                buffer = stored.segment(segment);
+            }
+
+            final ByteBuffer buffer = this.buffer;
+            final long uid = buffer.getLong(offset);
+            final long timestamp = buffer.getLong(offset + 8);
+            final int src = buffer.getInt(offset + 16);
+            final int dst = buffer.getInt(offset + 20);
+            final int length = buffer.getInt(offset + 24);
+
+            // payloads are small, so they are copied rather than sliced: a slice would keep the whole segment mapped for
+            // as long as the message is reachable, regardless of how many segments the store allows to be mapped
+            final byte[] payload = new byte[length];
+            buffer.duplicate().position(offset + RECORD_HEADER_SIZE).get(payload);
+            offset += RECORD_HEADER_SIZE + length;
+
+            return new LazyMsg(recordDecoder, session, uid, timestamp, src, dst, ByteBuffer.wrap(payload));
+        }
+    }
+
+    private final class SegmentWriter implements Closeable {
+
+        private final Session session;
+
+        private final long startTime;
+
+        private final Path temporary;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+        private final DataOutputStream index;
+
+        private FileChannel channel;
+
+        private int segments = 0;
+
+        private int entries = 0;
+
+        private long position = 0;
+
+        private long records = 0;
+
+        private boolean committed = false;
+
+        private SegmentWriter(Session session, long startTime) throws IOException {
+            this.session = session;
+            this.startTime = startTime;
+            this.temporary = Files.createTempDirectory(Files.createDirectories(directory), "." + session.getName() + "-");
+            this.index = new DataOutputStream(Files.newOutputStream(temporary.resolve("index.entries")));
+        }
+
+        private void append(MapRecord<String, String, String> record) {
+            final var it = record.getValue();
+            final long uid;
+            final long timestamp;
+            final int src;
+            final int dst;
+            try {
+                uid = StreamIds.pack(record.getId().getValue());
+                timestamp = Long.parseLong(it.getOrDefault("timestamp", "-1"));
+                src = Integer.parseInt(it.getOrDefault("src", "-1"));
+                dst = Integer.parseInt(it.getOrDefault("dst", "-1"));
+            } catch (NumberFormatException e) {
+                log.error("Unable to store msg id={} data={}.", record.getId(), it, e);
+                return;
+            }
+            if (timestamp == -1 || src == -1 || dst == -1) {
+                log.error("Unable to store msg id={} data={}.", record.getId(), it);
+                return;
+            }
+
+            final byte[] payload = it.getOrDefault("data", "").getBytes(StandardCharsets.UTF_8);
+            final int size = RECORD_HEADER_SIZE + payload.length;
+            if (size > SEGMENT_SIZE) {
+                throw new IllegalStateException("Record " + record.getId() + " does not fit into a segment");
+            }
+
+            try {
+                if (channel == null || position + size > SEGMENT_SIZE) {
+                    nextSegment();
+                }
+                if (records % INDEX_INTERVAL == 0) {
+                    index.writeLong(uid);
+                    index.writeInt(segments - 1);
+                    index.writeInt((int) position);
+                    entries++;
+                }
+
+                if (buffer.remaining() < RECORD_HEADER_SIZE) {
+                    flush();
+                }
+                buffer.putLong(uid).putLong(timestamp - startTime).putInt(src).putInt(dst).putInt(payload.length);
+                for (int written = 0; written < payload.length; ) {
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+                    final int chunk = Math.min(buffer.remaining(), payload.length - written);
+                    buffer.put(payload, written, chunk);
+                    written += chunk;
+                }
+
+                position += size;
+                records++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void nextSegment() throws IOException {
+            if (channel != null) {
+                flush();
+                channel.force(false);
+                channel.close();
+            }
+            channel = FileChannel.open(temporary.resolve(segments + ".seg"),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            segments++;
+            position = 0;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Finishes the last segment and the index, then publishes the session by renaming its directory.
+         */
+        private void commit() {
+            try {
+                if (channel != null) {
+                    flush();
+                    channel.force(false);
+                    channel.close();
+                }
+                index.close();
+
+                // the index file is prefixed with its dimensions, which are only known now
+                try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temporary.resolve("index")))) {
+                    out.writeInt(segments);
+                    out.writeInt(entries);
+                    Files.copy(temporary.resolve("index.entries"), out);
+                }
+                Files.delete(temporary.resolve("index.entries"));
+
+                Files.move(temporary, sessionDirectory(session), StandardCopyOption.ATOMIC_MOVE);
+                committed = true;
+                stored.add(session);
+                log.info("Stored session {} ({} records in {} segments).", session.getName(), records, segments);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (channel != null && channel.isOpen()) {
+                    channel.close();
+                }
+                index.close();
+            } catch (IOException e) {
+                log.warn("Unable to clean up {}.", temporary, e);
+            }
+            if (!committed) {
+                delete(temporary);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.sireum.hamr.inspector.common.Msg;
+import org.sireum.hamr.inspector.services.Session;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A weight-bounded cache of decoded {@link Msg}s keyed by session and packed uid (see {@link StreamIds#pack(String)}).
+ *
+ * Each session's messages are grouped into segments of neighbouring uids (all uids that share the same upper bits,
+ * roughly 64ms of stream time per segment). Segments are stored in sorted primitive arrays so lookups perform two
+ * binary searches and allocate nothing. Eviction works on whole segments: when the cache is over its maximum weight,
+ * the least recently used segment of the session currently using the most weight is evicted. This means a single
+ * busy session can only evict its own older segments once it is the largest session, and never the working sets of
+ * smaller sessions.
+ *
+ * Like the Caffeine cache this replaced, segments that have not been read or written for {@code expireAfterAccess}
+ * are also evicted, so the cache empties out when sessions are no longer viewed. Expired segments are swept at most a
+ * few times per expiry period, by whichever thread accesses the cache once a sweep is due. Sessions without any
+ * segments left are removed, so eviction only ever scans sessions that are actually cached.
+ */
+@Slf4j
+final class SegmentedMsgCache {
+
+    /**
+     * Uids sharing all bits above this shift belong to the same segment. Packed uids store the sequence in the lower
+     * 21 bits, so each segment covers 2^6 = 64 milliseconds of a stream.
+     */
+    static final int SEGMENT_SHIFT = 27;
+
+    /**
+     * The approximate retained size of one cached entry: the {@link Msg} itself plus its uid and reference slots.
+     * The {@link art.DataContent} of a message is not counted because it is shared with the parse cache.
+     */
+    static final long ENTRY_WEIGHT = 96;
+
+    private final Map<Session, SessionSegments> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong totalWeight = new AtomicLong();
+
+    /**
+     * Returned by {@link SessionSegments#put} if the session's segments were removed from {@link #sessions} while
+     * being put into, in which case the put is retried with new segments.
+     */
+    private static final int RETIRED = -1;
+
+    private static final int REPLACED = 0;
+
+    private static final int ADDED = 1;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private volatile long maximumWeight;
+
+    private final long expireAfterAccessNanos;
+
+    /**
+     * The {@link System#nanoTime()} at which expired segments are swept next.
+     */
+    private volatile long nextSweep;
+
+    SegmentedMsgCache(long maximumWeight, @NotNull Duration expireAfterAccess) {
+        this.maximumWeight = maximumWeight;
+        this.expireAfterAccessNanos = expireAfterAccess.toNanos();
+        this.nextSweep = System.nanoTime() + expireAfterAccessNanos;
+    }
+
+    @Nullable
+    Msg get(@NotNull Session session, long uid) {
+        final long now = System.nanoTime();
+        final SessionSegments segments = sessions.get(session);
+        final Msg msg = segments != null ? segments.get(uid, now) : null;
+        (msg != null ? hits : misses).increment();
+        sweepIfDue(now);
+        return msg;
+    }
+
+    void put(@NotNull Session session, long uid, @NotNull Msg msg) {
+        final long now = System.nanoTime();
+        while (true) {
+            SessionSegments segments = sessions.get(session);
+            if (segments == null) {
+                segments = sessions.computeIfAbsent(session, SessionSegments::new);
+            }
+
+            final int result = segments.put(uid, msg, now);
+            if (result == RETIRED) {
+                continue;
+            }
+            if (result == ADDED && totalWeight.addAndGet(ENTRY_WEIGHT) > maximumWeight) {
+                evict();
+            }
+            break;
+        }
+        sweepIfDue(now);
+    }
+
+    /**
+     * Removes every cached message of a session.
+     */
+    void invalidate(@NotNull Session session) {
+        final SessionSegments segments = sessions.remove(session);
+        if (segments != null) {
+            totalWeight.addAndGet(-segments.retire());
+        }
+    }
+
+    void setMaximumWeight(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+        evict();
+    }
+
+    long weight() {
+        return totalWeight.get();
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    private void evict() {
+        // a single thread evicting is enough, others simply continue and will be brought under budget by it
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+
+        try {
+            while (totalWeight.get() > maximumWeight) {
+                SessionSegments largest = null;
+                for (SessionSegments segments : sessions.values()) {
+                    if (largest == null || segments.weight > largest.weight) {
+                        largest = segments;
+                    }
+                }
+
+                final long freed = largest != null ? largest.evictLeastRecentlyUsed() : 0;
+                if (freed == 0) {
+                    break;
+                }
+                totalWeight.addAndGet(-freed);
+                removeIfEmpty(largest);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void sweepIfDue(long now) {
+        if (now - nextSweep < 0 || !evictionLock.tryLock()) {
+            return;
+        }
+
+        try {
+            nextSweep = now + Math.max(expireAfterAccessNanos / 4, 1);
+            final long expiredBefore = now - expireAfterAccessNanos;
+            for (SessionSegments segments : sessions.values()) {
+                final long freed = segments.evictAccessedBefore(expiredBefore);
+                if (freed > 0) {
+                    totalWeight.addAndGet(-freed);
+                }
+                removeIfEmpty(segments);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void removeIfEmpty(SessionSegments segments) {
+        if (segments.retireIfEmpty()) {
+            sessions.remove(segments.session, segments);
+        }
+    }
+
+    private static final class SessionSegments {
+
+        private final StampedLock lock = new StampedLock();
+
+        private final Session session;
+
+        private long[] keys = new long[16];
+
+        private Segment[] segments = new Segment[16];
+
+        private int size = 0;
+
+        private volatile long weight = 0;
+
+        /**
+         * Set once these segments are empty and about to be removed from {@link #sessions}, after which nothing may be
+         * put into them.
+         */
+        private boolean retired = false;
+
+        private SessionSegments(Session session) {
+            this.session = session;
+        }
+
+        private Msg get(long uid, long now) {
+            final long stamp = lock.readLock();
+            try {
+                final int index = Arrays.binarySearch(keys, 0, size, uid >>> SEGMENT_SHIFT);
+                if (index < 0) {
+                    return null;
+                }
+
+                final Segment segment = segments[index];
+                segment.lastAccess = now;
+                return segment.get(uid);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * @return {@link #ADDED} if a new entry was added, {@link #REPLACED} if an existing entry was replaced or
+         * {@link #RETIRED} if nothing was put
+         */
+        private int put(long uid, Msg msg, long now) {
+            final long stamp = lock.writeLock();
+            try {
+                if (retired) {
+                    return RETIRED;
+                }
+
+                final long key = uid >>> SEGMENT_SHIFT;
+                int index = Arrays.binarySearch(keys, 0, size, key);
+                if (index < 0) {
+                    index = -index - 1;
+                    insertSegment(index, key);
+                }
+
+                final Segment segment = segments[index];
+                segment.lastAccess = now;
+                if (segment.put(uid, msg)) {
+                    weight += ENTRY_WEIGHT;
+                    return ADDED;
+                }
+                return REPLACED;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * @return the weight freed by evicting this session's least recently used segment
+         */
+        private long evictLeastRecentlyUsed() {
+            final long stamp = lock.writeLock();
+            try {
+                if (size == 0) {
+                    return 0;
+                }
+
+                int lru = 0;
+                for (int i = 1; i < size; i++) {
+                    if (segments[i].lastAccess - segments[lru].lastAccess < 0) {
+                        lru = i;
+                    }
+                }
+
+                final long freed = segments[lru].size * ENTRY_WEIGHT;
+                System.arraycopy(keys, lru + 1, keys, lru, size - lru - 1);
+                System.arraycopy(segments, lru + 1, segments, lru, size - lru - 1);
+                segments[--size] = null;
+                weight -= freed;
+
+                log.trace("Evicted {} bytes of cached messages from session {}.", freed, session.getName());
+                return freed;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * @return the weight freed by evicting every segment last accessed before the given time
+         */
+        private long evictAccessedBefore(long time) {
+            final long stamp = lock.writeLock();
+            try {
+                long freed = 0;
+                int kept = 0;
+                for (int i = 0; i < size; i++) {
+                    if (segments[i].lastAccess - time < 0) {
+                        freed += segments[i].size * ENTRY_WEIGHT;
+                    } else {
+                        keys[kept] = keys[i];
+                        segments[kept++] = segments[i];
+                    }
+                }
+                Arrays.fill(segments, kept, size, null);
+                size = kept;
+                weight -= freed;
+                return freed;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Retires these segments regardless of whether they are empty.
+         *
+         * @return the weight freed by dropping every segment
+         */
+        private long retire() {
+            final long stamp = lock.writeLock();
+            try {
+                final long freed = weight;
+                Arrays.fill(segments, 0, size, null);
+                size = 0;
+                weight = 0;
+                retired = true;
+                return freed;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * @return true if these segments are empty, in which case they are retired
+         */
+        private boolean retireIfEmpty() {
+            final long stamp = lock.writeLock();
+            try {
+                if (size == 0) {
+                    retired = true;
+                }
+                return retired;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private void insertSegment(int index, long key) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                segments = Arrays.copyOf(segments, size * 2);
+            }
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(segments, index, segments, index + 1, size - index);
+            keys[index] = key;
+            segments[index] = new Segment();
+            size++;
+        }
+    }
+
+    private static final class Segment {
+
+        private long[] uids = new long[8];
+
+        private Msg[] msgs = new Msg[8];
+
+        private int size = 0;
+
+        private volatile long lastAccess = 0;
+
+        private Msg get(long uid) {
+            final int index = Arrays.binarySearch(uids, 0, size, uid);
+            return index >= 0 ? msgs[index] : null;
+        }
+
+        private boolean put(long uid, Msg msg) {
+            int index = Arrays.binarySearch(uids, 0, size, uid);
+            if (index >= 0) {
+                msgs[index] = msg;
+                return false;
+            }
+
+            index = -index - 1;
+            if (size == uids.length) {
+                uids = Arrays.copyOf(uids, size * 2);
+                msgs = Arrays.copyOf(msgs, size * 2);
+            }
+            System.arraycopy(uids, index, uids, index + 1, size - index);
+            System.arraycopy(msgs, index, msgs, index + 1, size - index);
+            uids[index] = uid;
+            msgs[index] = msg;
+            size++;
+            return true;
+        }
+    }
+
+}
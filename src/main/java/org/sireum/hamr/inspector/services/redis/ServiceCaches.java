@@ -25,16 +25,15 @@
 
 package org.sireum.hamr.inspector.services.redis;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.experimental.UtilityClass;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.sireum.hamr.inspector.common.Msg;
 import org.sireum.hamr.inspector.services.Session;
-import reactor.util.function.Tuple2;
-import reactor.util.function.Tuples;
 
 import java.time.Duration;
 
@@ -42,14 +41,24 @@ import java.time.Duration;
 @UtilityClass
 class ServiceCaches {
 
-    private static final Cache<Tuple2<Session, Long>, Msg> ID_CACHE = Caffeine.newBuilder()
-            .maximumSize(8192)
-            .expireAfterAccess(Duration.ofMinutes(5))
-            .build();
+    /**
+     * The default weight budget of {@link #ID_CACHE}, which is roughly 700,000 messages.
+     */
+    static final long DEFAULT_MAXIMUM_WEIGHT = 64_000_000; // ~ 0.064 GB
+
+    /**
+     * How long cached messages are kept after they were last read or written.
+     */
+    static final Duration EXPIRE_AFTER_ACCESS = Duration.ofMinutes(5);
+
+    private static final String CACHE_TAG = "cache";
+
+    private static final String CACHE_NAME = "inspector.msg-cache";
+
+    private static final SegmentedMsgCache ID_CACHE = new SegmentedMsgCache(DEFAULT_MAXIMUM_WEIGHT, EXPIRE_AFTER_ACCESS);
 
     static void put(@NotNull Session session, long id, @NotNull Msg msg) {
-        final Tuple2<Session, Long> pair = Tuples.of(session, id);
-        ID_CACHE.put(pair, msg);
+        ID_CACHE.put(session, id, msg);
     }
 
     /**
@@ -66,7 +75,38 @@ class ServiceCaches {
      */
     @Nullable
     static Msg get(@NotNull Session session, long id) {
-        final Tuple2<Session, Long> pair = Tuples.of(session, id);
-        return ID_CACHE.getIfPresent(pair);
+        return ID_CACHE.get(session, id);
+    }
+
+    /**
+     * Removes every cached {@link Msg} of a session.
+     */
+    static void invalidate(@NotNull Session session) {
+        ID_CACHE.invalidate(session);
+    }
+
+    /**
+     * Registers the hit, miss and size meters of the message cache, using the same names as Micrometer's cache
+     * binders so they can be charted next to the parse cache.
+     */
+    static void bindTo(@NotNull MeterRegistry registry) {
+        FunctionCounter.builder("cache.gets", ID_CACHE, SegmentedMsgCache::hitCount)
+                .tags(CACHE_TAG, CACHE_NAME, "result", "hit")
+                .register(registry);
+        FunctionCounter.builder("cache.gets", ID_CACHE, SegmentedMsgCache::missCount)
+                .tags(CACHE_TAG, CACHE_NAME, "result", "miss")
+                .register(registry);
+        Gauge.builder("cache.weight", ID_CACHE, SegmentedMsgCache::weight)
+                .tags(CACHE_TAG, CACHE_NAME)
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * Sets the approximate number of bytes all cached messages (across all sessions) may use.
+     */
+    static void setMaximumWeight(long maximumWeight) {
+        log.debug("Message cache maximum weight set to {} bytes.", maximumWeight);
+        ID_CACHE.setMaximumWeight(maximumWeight);
     }
 }
\ No newline at end of file
@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.sireum.hamr.inspector.services.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ReactiveStreamOperations;
+import org.springframework.data.redis.core.ReactiveValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Controller;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports sessions to, and imports sessions from, a compact binary format so sessions can be moved between redis
+ * instances without re-running the system that produced them.
+ *
+ * An archive starts with the magic number {@link #MAGIC}, a version byte and a flags byte. If {@link #FLAG_GZIP} is
+ * set, everything after the flags byte is GZIP compressed. The body holds:
+ * <ul>
+ *     <li>the session's start time (long), whether it has a stop time (boolean) and its stop time (long)</li>
+ *     <li>every record of the session's stream, each as its field count (int), its id and then its fields as
+ *     alternating keys and values, where every string is its UTF-8 length (int) followed by its bytes</li>
+ *     <li>an end marker (a field count of -1) followed by the number of records (long)</li>
+ * </ul>
+ * Exports read the stream one page at a time and imports write it in batches of one script each, so memory use is
+ * constant regardless of the size of the session.
+ *
+ * Only the three keys of a session ("n-start", "n-stop" and "n-stream") are archived. Derived keys such as the port
+ * index ("n-port-index" and "n-port-&lt;id&gt;", see {@link PortIndex}) are not, and are rebuilt for an imported
+ * session the first time it is replayed by port.
+ */
+@Slf4j
+@Controller
+public class SessionArchiveRedis {
+
+    static final int MAGIC = 0x494E5350; // "INSP"
+
+    static final byte VERSION = 1;
+
+    static final byte FLAG_GZIP = 1;
+
+    private static final int END_OF_RECORDS = -1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The largest string an archive may contain, which is the largest string redis can store.
+     */
+    private static final int MAX_STRING_LENGTH = 512 << 20;
+
+    /**
+     * Adds the records in ARGV to the stream in KEYS[1], in order. Each record is written as its id, its field count
+     * and its alternating field keys and values. Returns the number of added records.
+     */
+    private static final RedisScript<Long> IMPORT_SCRIPT = RedisScript.of(String.join("\n",
+            "local i = 1",
+            "local added = 0",
+            "while i <= #ARGV do",
+            "  local id = ARGV[i]",
+            "  local fields = tonumber(ARGV[i + 1]) * 2",
+            "  redis.call('XADD', KEYS[1], id, unpack(ARGV, i + 2, i + 1 + fields))",
+            "  i = i + 2 + fields",
+            "  added = added + 1",
+            "end",
+            "return added"), Long.class);
+
+    private final ReactiveRedisTemplate<String, String> template;
+
+    private final SessionServiceRedis sessionService;
+
+    private final RedisServiceMetrics metrics;
+
+    private ReactiveStreamOperations<String, String, String> streamOps;
+
+    private ReactiveValueOperations<String, String> valueOps;
+
+    private StreamPager streamPager;
+
+    @Value("${inspector.redis.replay.page-size:1024}")
+    private int pageSize;
+
+    /**
+     * The number of records written per script while importing.
+     */
+    @Value("${inspector.redis.import.batch-size:512}")
+    private int importBatchSize;
+
+    public SessionArchiveRedis(ReactiveRedisTemplate<String, String> template, SessionServiceRedis sessionService, RedisServiceMetrics metrics) {
+        this.template = template;
+        this.sessionService = sessionService;
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    private void postConstruct() {
+        streamOps = template.opsForStream();
+        valueOps = template.opsForValue();
+        // exports always page, even if replays are configured not to
+        streamPager = new StreamPager(streamOps, metrics, pageSize > 0 ? pageSize : 1024, 2);
+    }
+
+    /**
+     * Writes a session to an output stream. The output stream is flushed but not closed.
+     *
+     * @param session the session to export
+     * @param out the output stream to write the archive to
+     * @param compress whether the archive is GZIP compressed
+     * @return the number of exported records, or an error if the session does not exist
+     */
+    @NotNull
+    public Mono<Long> exportSession(@NotNull Session session, @NotNull OutputStream out, boolean compress) {
+        final List<String> keys = List.of(session.getName() + "-start", session.getName() + "-stop");
+
+        // the archive is written on a worker thread, never on the thread that completed a redis command
+        return valueOps.multiGet(keys).publishOn(Schedulers.boundedElastic()).flatMap(times -> {
+            if (times.get(0) == null) {
+                return Mono.error(new IllegalArgumentException("Session " + session.getName() + " does not exist"));
+            }
+
+            return Mono.using(() -> new ArchiveWriter(out, compress),
+                    writer -> {
+                        writer.writeHeader(Long.parseLong(times.get(0)), times.get(1));
+                        return streamPager.range(session, Range.unbounded())
+                                .publishOn(Schedulers.boundedElastic())
+                                .doOnNext(writer::writeRecord)
+                                .then(Mono.fromCallable(writer::finish));
+                    },
+                    ArchiveWriter::release);
+        });
+    }
+
+    /**
+     * Reads an archive into a new session. The session's number is allocated from "numSessions" like any other
+     * session, and the session only becomes visible once all of its records are written. The input stream is not
+     * closed.
+     *
+     * @param in the input stream to read the archive from
+     * @return the imported session
+     */
+    @NotNull
+    public Mono<Session> importSession(@NotNull InputStream in) {
+        return Mono.fromCallable(() -> new ArchiveReader(in))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(reader -> valueOps.increment("numSessions").flatMap(number -> {
+                    final Session session = new Session(Long.toString(number));
+                    final String key = session.getName() + "-stream";
+
+                    final Flux<MapRecord<String, String, String>> records = Flux.<MapRecord<String, String, String>>generate(sink -> {
+                        final MapRecord<String, String, String> record = reader.readRecord(key);
+                        if (record == null) {
+                            sink.complete();
+                        } else {
+                            sink.next(record);
+                        }
+                    }).subscribeOn(Schedulers.boundedElastic());
+
+                    // each batch is added by a single script, which redis runs atomically, so the records are always
+                    // added in order (keeping their original, increasing ids valid) with one round trip per batch
+                    return records.buffer(importBatchSize)
+                            .concatMap(batch -> template.execute(IMPORT_SCRIPT, List.of(key), toArgs(batch)).then())
+                            .then(Mono.fromRunnable(reader::verify).subscribeOn(Schedulers.boundedElastic()))
+                            .then(Mono.defer(() -> {
+                                final Map<String, String> times = new LinkedHashMap<>();
+                                times.put(session.getName() + "-start", Long.toString(reader.startTime));
+                                if (reader.stopTime != null) {
+                                    times.put(session.getName() + "-stop", Long.toString(reader.stopTime));
+                                }
+                                return valueOps.multiSet(times);
+                            }))
+                            .doOnSuccess(any -> {
+                                sessionService.registerSession(session);
+                                log.info("Imported {} records into session {}.", reader.records, session.getName());
+                            })
+                            .thenReturn(session);
+                }));
+    }
+
+    private static List<String> toArgs(List<MapRecord<String, String, String>> records) {
+        final List<String> args = new ArrayList<>();
+        for (MapRecord<String, String, String> record : records) {
+            args.add(record.getId().getValue());
+            args.add(Integer.toString(record.getValue().size()));
+            for (Map.Entry<String, String> field : record.getValue().entrySet()) {
+                args.add(field.getKey());
+                args.add(field.getValue());
+            }
+        }
+        return args;
+    }
+
+    static final class ArchiveWriter {
+
+        private final DataOutputStream out;
+
+        @Nullable
+        private final GZIPOutputStream gzip;
+
+        private long records = 0;
+
+        ArchiveWriter(OutputStream out, boolean compress) throws IOException {
+            final DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeByte(VERSION);
+            header.writeByte(compress ? FLAG_GZIP : 0);
+            header.flush();
+
+            this.gzip = compress ? new GZIPOutputStream(out, BUFFER_SIZE) : null;
+            this.out = new DataOutputStream(new BufferedOutputStream(gzip != null ? gzip : out, BUFFER_SIZE));
+        }
+
+        void writeHeader(long startTime, @Nullable String stopTime) {
+            try {
+                out.writeLong(startTime);
+                out.writeBoolean(stopTime != null);
+                out.writeLong(stopTime != null ? Long.parseLong(stopTime) : 0L);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void writeRecord(MapRecord<String, String, String> record) {
+            try {
+                final Map<String, String> fields = record.getValue();
+                out.writeInt(fields.size());
+                writeString(record.getId().getValue());
+                for (Map.Entry<String, String> field : fields.entrySet()) {
+                    writeString(field.getKey());
+                    writeString(field.getValue());
+                }
+                records++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeString(String string) throws IOException {
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        long finish() throws IOException {
+            out.writeInt(END_OF_RECORDS);
+            out.writeLong(records);
+            out.flush();
+            if (gzip != null) {
+                gzip.finish();
+            }
+            return records;
+        }
+
+        void release() {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                log.warn("Unable to flush session archive.", e);
+            }
+        }
+    }
+
+    static final class ArchiveReader {
+
+        private final DataInputStream in;
+
+        final long startTime;
+
+        @Nullable
+        final Long stopTime;
+
+        private long records = 0;
+
+        private boolean ended = false;
+
+        ArchiveReader(InputStream in) throws IOException {
+            final DataInputStream header = new DataInputStream(in);
+            if (header.readInt() != MAGIC) {
+                throw new IOException("Not a session archive");
+            }
+            final byte version = header.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported session archive version " + version);
+            }
+            final boolean compressed = (header.readByte() & FLAG_GZIP) != 0;
+
+            this.in = new DataInputStream(compressed
+                    ? new GZIPInputStream(in, BUFFER_SIZE)
+                    : new BufferedInputStream(in, BUFFER_SIZE));
+            this.startTime = this.in.readLong();
+            final boolean stopped = this.in.readBoolean();
+            final long stop = this.in.readLong();
+            this.stopTime = stopped ? stop : null;
+        }
+
+        @Nullable
+        MapRecord<String, String, String> readRecord(String key) {
+            try {
+                final int fieldCount = in.readInt();
+                if (fieldCount == END_OF_RECORDS) {
+                    ended = true;
+                    return null;
+                }
+                if (fieldCount < 0) {
+                    throw new IOException("Session archive contains a record with " + fieldCount + " fields");
+                }
+
+                final String id = readString();
+                final Map<String, String> fields = new LinkedHashMap<>(Math.min(fieldCount, 64) * 2);
+                for (int i = 0; i < fieldCount; i++) {
+                    fields.put(readString(), readString());
+                }
+                records++;
+                return MapRecord.create(key, fields).withId(RecordId.of(id));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private String readString() throws IOException {
+            final int length = in.readInt();
+            if (length < 0 || length > MAX_STRING_LENGTH) {
+                throw new IOException("Session archive contains a string of length " + length);
+            }
+            // read incrementally rather than allocated up front, so a corrupt length fails at the end of the archive
+            // instead of allocating its full size
+            final byte[] bytes = in.readNBytes(length);
+            if (bytes.length != length) {
+                throw new EOFException("Session archive ended within a string");
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Checks that the archive was read to its end and contained as many records as it claims to.
+         */
+        void verify() {
+            try {
+                if (!ended) {
+                    throw new IOException("Session archive ended before its end marker");
+                }
+                final long expected = in.readLong();
+                if (expected != records) {
+                    throw new IOException("Session archive claims " + expected + " records but contained " + records);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+}
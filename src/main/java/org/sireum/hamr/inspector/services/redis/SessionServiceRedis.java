@@ -25,8 +25,13 @@
 
 package org.sireum.hamr.inspector.services.redis;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.sireum.hamr.inspector.services.Session;
 import org.sireum.hamr.inspector.services.SessionService;
 import org.sireum.hamr.inspector.services.SessionStatus;
@@ -34,34 +39,123 @@ import org.springframework.data.redis.connection.ReactiveSubscription;
 import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.ReactiveValueOperations;
 import org.springframework.stereotype.Controller;
+import reactor.core.Disposable;
+import reactor.core.publisher.DirectProcessor;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.GroupedFlux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+import reactor.util.function.Tuple2;
 import reactor.util.function.Tuples;
+import reactor.util.retry.Retry;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
 @Controller
 public class SessionServiceRedis implements SessionService {
 
-    private static final int MAX_KEY_QUERY_BUFFER_SIZE = 65536;
+    /**
+     * The number of "-start" keys fetched per MGET while discovering sessions.
+     */
+    private static final int DISCOVERY_BATCH_SIZE = 1024;
+
+    /**
+     * The number of discovery MGETs that may be in flight (and therefore pipelined) at once.
+     */
+    private static final int DISCOVERY_CONCURRENCY = 4;
+
+    /**
+     * Sessions are numbered by "numSessions", so they are listed numerically rather than lexicographically.
+     */
+    private static final Comparator<Session> SESSION_ORDER =
+            Comparator.comparingLong(SessionServiceRedis::sessionNumber).thenComparing(Session::getName);
+
+    /**
+     * How long the metadata of a running session is trusted. Stop events invalidate it sooner, so this only matters if
+     * a stop event is missed while the inspector-channel subscription is being re-established.
+     */
+    private static final Duration RUNNING_METADATA_TTL = Duration.ofSeconds(30);
 
     private ReactiveValueOperations<String, String> valueOps;
 
     private final ReactiveStringRedisTemplate template;
 
-    private Flux<GroupedFlux<Session, SessionStatus>> liveSessionStatusHotFlux;
-
-    public SessionServiceRedis(ReactiveStringRedisTemplate template) {
+    private final RedisServiceMetrics metrics;
+
+    /**
+     * Every session known to exist. Seeded once by {@link #discovery} and then kept current by session start events.
+     */
+    private final Set<Session> knownSessions = new ConcurrentSkipListSet<>(SESSION_ORDER);
+
+    /**
+     * The latest (cached) discovery. A failed discovery replaces itself with a new one, so the next caller retries it
+     * instead of receiving the same error forever.
+     */
+    private final AtomicReference<Mono<Void>> discovery = new AtomicReference<>();
+
+    /**
+     * The metadata of every session read so far. Completed sessions are kept forever since their metadata can no
+     * longer change, running sessions are invalidated by their stop event.
+     */
+    private final Cache<Session, SessionMetadata> metadataCache = Caffeine.newBuilder()
+            .expireAfter(new Expiry<Session, SessionMetadata>() {
+                @Override
+                public long expireAfterCreate(@NotNull Session session, @NotNull SessionMetadata metadata, long currentTime) {
+                    return metadata.status() == SessionStatus.COMPLETED ? Long.MAX_VALUE : RUNNING_METADATA_TTL.toNanos();
+                }
+
+                @Override
+                public long expireAfterUpdate(@NotNull Session session, @NotNull SessionMetadata metadata, long currentTime, long currentDuration) {
+                    return expireAfterCreate(session, metadata, currentTime);
+                }
+
+                @Override
+                public long expireAfterRead(@NotNull Session session, @NotNull SessionMetadata metadata, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .build();
+
+    /**
+     * The last known status of every session that was running at discovery or has changed status since. Statuses only
+     * ever move from RUNNING to COMPLETED.
+     */
+    private final Map<Session, SessionStatus> lastStatus = new ConcurrentHashMap<>();
+
+    /**
+     * Multicasts the status changes received by the single inspector-channel subscription to every subscriber of
+     * {@link #liveStatusUpdates()}.
+     */
+    private final DirectProcessor<Tuple2<Session, SessionStatus>> statusChanges = DirectProcessor.create();
+
+    private final FluxSink<Tuple2<Session, SessionStatus>> statusChangeSink = statusChanges.sink();
+
+    @Nullable
+    private Disposable statusSubscription;
+
+    public SessionServiceRedis(ReactiveStringRedisTemplate template, RedisServiceMetrics metrics) {
         this.template = template;
+        this.metrics = metrics;
     }
 
     @PostConstruct
     private void postConstruct() {
         valueOps = template.opsForValue();
 
-        liveSessionStatusHotFlux = template.listenToChannel("inspector-channel")
+        final Flux<Tuple2<Session, SessionStatus>> statusEvents = template.listenToChannel("inspector-channel")
                 .map(ReactiveSubscription.Message::getMessage)
                 .map(message -> {
                     final int dashIndex = message.indexOf('-');
@@ -69,22 +163,102 @@ public class SessionServiceRedis implements SessionService {
                     final String content = message.substring(dashIndex);
 
                     if (content.equals("-start")) {
-                        return Tuples.of(session, true);
+                        return Tuples.of(new Session(session), SessionStatus.RUNNING);
                     } else if (content.equals("-stop")) {
-                        return Tuples.of(session, false);
+                        return Tuples.of(new Session(session), SessionStatus.COMPLETED);
                     } else {
                         throw new RuntimeException("ClientStateService received unparsable string: " + message);
                     }
                 })
                 .onErrorContinue((throwable, message) ->
-                        log.error("ClientStateService received invalid input on inspector-channel: {}", message))
-                .groupBy(tuple -> new Session(tuple.getT1()),
-                        tuple -> tuple.getT2() ? SessionStatus.RUNNING : SessionStatus.COMPLETED);
+                        log.error("ClientStateService received invalid input on inspector-channel: {}", message));
+
+        discovery.set(newDiscovery(false));
+
+        // the only subscription to inspector-channel. It keeps knownSessions and lastStatus current without any
+        // further queries, and forwards every change to the subscribers of liveStatusUpdates(). If the subscription
+        // is ever lost, sessions may have started or stopped in the meantime, so they are rediscovered right away.
+        statusSubscription = statusEvents
+                .doOnError(throwable -> {
+                    log.warn("Lost subscription to inspector-channel, sessions will be rediscovered.", throwable);
+                    final Mono<Void> rediscovery = newDiscovery(false);
+                    discovery.set(rediscovery);
+                    rediscovery.subscribe(any -> { }, e -> log.error("Unable to rediscover sessions.", e));
+                })
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(30)))
+                .subscribe(event -> {
+                    knownSessions.add(event.getT1());
+                    metadataCache.invalidate(event.getT1());
+                    updateStatus(event.getT1(), event.getT2());
+                    statusChangeSink.next(event);
+                });
+    }
+
+    @PreDestroy
+    private void preDestroy() {
+        if (statusSubscription != null) {
+            statusSubscription.dispose();
+        }
+        statusChangeSink.complete();
     }
 
     @NotNull
     @Override
     public Flux<Session> sessions() {
+        final Timer scanLatency = metrics.sessionsScanLatency();
+
+        return Flux.defer(() -> {
+            final Timer.Sample sample = Timer.start(metrics.registry());
+            return discovery.get().thenMany(Flux.fromIterable(knownSessions)).doFinally(signal -> sample.stop(scanLatency));
+        });
+    }
+
+    /**
+     * Discards all known sessions and discovers them again. Sessions are only ever added by start events, so this is
+     * needed to notice sessions that were deleted from redis while this service was running.
+     *
+     * @return a mono that completes once discovery has finished
+     */
+    @NotNull
+    public Mono<Void> refreshSessions() {
+        final Mono<Void> rediscovery = newDiscovery(true);
+        discovery.set(rediscovery);
+        return rediscovery;
+    }
+
+    /**
+     * Creates a discovery that runs at most once, when first subscribed, and is then shared by every later subscriber.
+     * If it fails, it is replaced by a new discovery before its error is delivered.
+     *
+     * @param refresh whether all known sessions are discarded before discovering them again
+     */
+    private Mono<Void> newDiscovery(boolean refresh) {
+        final AtomicReference<Mono<Void>> self = new AtomicReference<>();
+        final Mono<Void> cached = Mono.fromRunnable(() -> {
+                    if (refresh) {
+                        knownSessions.clear();
+                        lastStatus.clear();
+                    }
+                })
+                .then(discoverSessions())
+                .doOnError(throwable -> {
+                    log.warn("Unable to discover sessions, discovery will be retried by the next caller.", throwable);
+                    discovery.compareAndSet(self.get(), newDiscovery(refresh));
+                })
+                .cache();
+        self.set(cached);
+        return cached;
+    }
+
+    /**
+     * Adds a session that was created without a start event (for example by an import) to the known sessions.
+     */
+    void registerSession(@NotNull Session session) {
+        knownSessions.add(session);
+        metadataCache.invalidate(session);
+    }
+
+    private Mono<Void> discoverSessions() {
         // Scanning the key space can have issues on larger dbs if the return size of "scan()" becomes too large.
 
         // Because the Inspector's streams are uniquely numbered using the atomic increasing-only value "numSessions,"
@@ -94,53 +268,150 @@ public class SessionServiceRedis implements SessionService {
         //      (3) Filter the output to remove deleted keys
 
         // Keys are checked to see if they exist because it's possible someone may want to delete old sessions
-        // without renaming or changing their current sessions. Use querySessionsUnsafe() to skip this check.
+        // without renaming or changing their current sessions.
+
+        // Only the "n-start" key is checked, because unlike the "n-stream" key it can be fetched for many sessions at
+        // once using a single MGET. This is because it's assumed any key deletion procedure will handle all three
+        // keys ("n-start, n-stop, and n-stream") at once. The "n-stop" keys are read by the same MGET to seed the
+        // metadata cache, so opening any discovered session afterwards needs no extra round trip.
 
-        // This method does NOT check if all three components ("n-start, n-stop, and n-stream") of a session's key
-        // triplet are contained in the database. Only the "n-stream" key is checked. This is because it's assumed any
-        // key deletion procedure will handle all three at once.
+        // Sessions replayed by port also have a port index ("n-port-index" and one "n-port-<id>" stream per port, see
+        // PortIndex) which a deletion procedure should delete as well. An index left behind is harmless: it is never
+        // used for discovery, and if the session number is reused it is detected as stale and rebuilt.
 
         return valueOps.get("numSessions")
                 .flatMapMany(countString -> {
                     final int count = Integer.parseInt(countString);
 
-                    // buffer size is rounded up to next power-of-two by filterWhen function so capping size
-                    // prevents issues from massive calls suddenly rounding up.
-                    final int bufferSize = Math.min(count, MAX_KEY_QUERY_BUFFER_SIZE);
-
-                    if (count != bufferSize) {
-                        log.warn("numSessions = {} > {}, so keys will be queried in chunks.", count, bufferSize);
-                    }
-
                     return Flux.range(1, count)
-                            .map(n -> new Session(Integer.toString(n)))
-                            .filterWhen(n -> template.hasKey(n + "-stream"), bufferSize);
-                });
+                            .buffer(DISCOVERY_BATCH_SIZE)
+                            .flatMapSequential(numbers -> {
+                                final List<String> keys = new ArrayList<>(numbers.size() * 2);
+                                for (int n : numbers) {
+                                    keys.add(n + "-start");
+                                    keys.add(n + "-stop");
+                                }
+
+                                return valueOps.multiGet(keys).flatMapIterable(values -> {
+                                    final List<Session> existing = new ArrayList<>(numbers.size());
+                                    for (int i = 0; i < numbers.size(); i++) {
+                                        final SessionMetadata metadata = parseMetadata(values.get(2 * i), values.get(2 * i + 1));
+                                        if (metadata != null) {
+                                            final Session session = new Session(Integer.toString(numbers.get(i)));
+                                            metadataCache.put(session, metadata);
+                                            if (metadata.status() == SessionStatus.RUNNING) {
+                                                updateStatus(session, SessionStatus.RUNNING);
+                                            } else {
+                                                lastStatus.computeIfPresent(session, (any, status) -> SessionStatus.COMPLETED);
+                                            }
+                                            existing.add(session);
+                                        }
+                                    }
+                                    return existing;
+                                });
+                            }, DISCOVERY_CONCURRENCY);
+                })
+                .doOnNext(knownSessions::add)
+                .then();
     }
 
     @NotNull
     @Override
     public Mono<Long> startTimeOf(@NotNull Session session) {
-        return valueOps.get(session.getName() + "-start").map(Long::parseLong);
+        return metadataOf(session).map(SessionMetadata::startTime);
     }
 
     @NotNull
     @Override
     public Mono<Long> stopTimeOf(@NotNull Session session) {
-        return valueOps.get(session.getName() + "-stop").map(Long::parseLong);
+        return metadataOf(session).flatMap(metadata -> Mono.justOrEmpty(metadata.stopTime()));
     }
 
     @NotNull
     @Override
     public Mono<SessionStatus> statusOf(@NotNull Session session) {
-        return stopTimeOf(session).map(any -> SessionStatus.COMPLETED)
-                .switchIfEmpty(startTimeOf(session).map(any -> SessionStatus.RUNNING));
+        return Mono.defer(() -> {
+            final SessionStatus status = lastStatus.get(session);
+            return status != null ? Mono.just(status) : metadataOf(session).map(SessionMetadata::status);
+        });
     }
 
+    /**
+     * Lists the sessions that are currently running, answered from memory.
+     *
+     * @return a flux of every running session
+     */
+    @NotNull
+    public Flux<Session> runningSessions() {
+        return Flux.defer(() -> discovery.get().thenMany(Flux.fromIterable(lastStatus.entrySet())))
+                .filter(entry -> entry.getValue() == SessionStatus.RUNNING)
+                .map(Map.Entry::getKey);
+    }
+
+    /**
+     * Returns the cached metadata of a session, or reads its "-start" and "-stop" keys with a single MGET.
+     * Sessions without a start time do not exist, so they are never cached and result in an empty mono.
+     */
+    private Mono<SessionMetadata> metadataOf(Session session) {
+        return Mono.defer(() -> {
+            final SessionMetadata cached = metadataCache.getIfPresent(session);
+            if (cached != null) {
+                return Mono.just(cached);
+            }
+
+            final List<String> keys = List.of(session.getName() + "-start", session.getName() + "-stop");
+            return valueOps.multiGet(keys)
+                    .flatMap(values -> Mono.justOrEmpty(parseMetadata(values.get(0), values.get(1))))
+                    .doOnNext(metadata -> metadataCache.put(session, metadata));
+        });
+    }
+
+    @Nullable
+    private static SessionMetadata parseMetadata(@Nullable String startTime, @Nullable String stopTime) {
+        if (startTime == null) {
+            return null;
+        }
+        return new SessionMetadata(Long.parseLong(startTime), stopTime == null ? null : Long.parseLong(stopTime));
+    }
+
+    /**
+     * Emits the last known status of every running (or recently changed) session, followed by every status change.
+     * All subscribers share this service's single inspector-channel subscription.
+     */
     @NotNull
     @Override
     public Flux<GroupedFlux<Session, SessionStatus>> liveStatusUpdates() {
-        return liveSessionStatusHotFlux;
+        // the snapshot is only complete once sessions have been discovered, so it waits for discovery to finish
+        return Mono.defer(discovery::get).thenMany(Flux.defer(() -> {
+            // changes are buffered from before the snapshot is taken, so none can be missed in between. A buffered
+            // change may be older than the snapshot, which is why only changes that advance a status are emitted
+            final UnicastProcessor<Tuple2<Session, SessionStatus>> changes = UnicastProcessor.create();
+            final Disposable buffering = statusChanges.subscribe(changes::onNext, changes::onError, changes::onComplete);
+
+            final List<Tuple2<Session, SessionStatus>> snapshot = new ArrayList<>(lastStatus.size());
+            lastStatus.forEach((session, status) -> snapshot.add(Tuples.of(session, status)));
+
+            final Map<Session, SessionStatus> delivered = new HashMap<>();
+            return Flux.fromIterable(snapshot)
+                    .concatWith(changes)
+                    .filter(event -> delivered.get(event.getT1()) != event.getT2()
+                            && delivered.get(event.getT1()) != SessionStatus.COMPLETED)
+                    .doOnNext(event -> delivered.put(event.getT1(), event.getT2()))
+                    .doFinally(signal -> buffering.dispose());
+        })).groupBy(Tuple2::getT1, Tuple2::getT2);
+    }
+
+    private void updateStatus(Session session, SessionStatus status) {
+        lastStatus.merge(session, status, (previous, next) ->
+                previous == SessionStatus.COMPLETED ? previous : next);
+    }
+
+    private static long sessionNumber(Session session) {
+        try {
+            return Long.parseLong(session.getName());
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
     }
 
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.data.domain.Range;
+
+/**
+ * Helpers for working with redis stream ids, which are always of the form "timestamp-sequence" where the timestamp
+ * is in milliseconds and the sequence is an unsigned 64-bit number.
+ *
+ * Stream ids are also packed into a single positive long (see {@link #pack(String)}) which is used as the uid of
+ * each {@link org.sireum.hamr.inspector.common.Msg}. Packed ids preserve stream order, so they can be compared
+ * directly, and they identify the same message no matter which method (live, replay, replayReverse, etc.) read it.
+ */
+@UtilityClass
+class StreamIds {
+
+    /**
+     * The smallest possible stream id. Reading from this id (exclusive) reads from the start of a stream.
+     */
+    static final String MIN = "0-0";
+
+    private static final int SEQUENCE_BITS = 21;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final long MAX_TIMESTAMP = Long.MAX_VALUE >>> SEQUENCE_BITS;
+
+    static long timestampOf(@NotNull String streamId) {
+        return Long.parseLong(streamId, 0, streamId.indexOf('-'), 10);
+    }
+
+    /**
+     * @return the timestamp of a packed uid (see {@link #pack(String)})
+     */
+    static long timestampOf(long uid) {
+        return uid >>> SEQUENCE_BITS;
+    }
+
+    static long sequenceOf(@NotNull String streamId) {
+        return Long.parseUnsignedLong(streamId, streamId.indexOf('-') + 1, streamId.length(), 10);
+    }
+
+    /**
+     * Packs a stream id into a single positive long by storing the timestamp in the upper 42 bits and the sequence
+     * in the lower 21 bits. This supports timestamps until the year 2109 and up to 2,097,152 records per millisecond.
+     *
+     * @param streamId the stream id to pack
+     * @return a positive long that orders the same way as the stream id
+     * @throws NumberFormatException if the stream id is malformed or too large to be packed
+     */
+    static long pack(@NotNull String streamId) {
+        final long timestamp = timestampOf(streamId);
+        final long sequence = sequenceOf(streamId);
+
+        if (timestamp < 0 || timestamp > MAX_TIMESTAMP || sequence < 0 || sequence > SEQUENCE_MASK) {
+            throw new NumberFormatException("Unable to pack stream id " + streamId);
+        }
+
+        return (timestamp << SEQUENCE_BITS) | sequence;
+    }
+
+    /**
+     * The inverse of {@link #pack(String)}.
+     */
+    @NotNull
+    static String unpack(long uid) {
+        return (uid >>> SEQUENCE_BITS) + "-" + (uid & SEQUENCE_MASK);
+    }
+
+    /**
+     * Returns the smallest stream id that is strictly after the given id. This is used instead of exclusive range
+     * bounds because they are only supported by redis 6.2 and above.
+     */
+    @NotNull
+    static String next(@NotNull String streamId) {
+        final long timestamp = timestampOf(streamId);
+        final long sequence = sequenceOf(streamId);
+
+        // -1 is the largest unsigned sequence
+        return sequence == -1L ? (timestamp + 1) + "-0" : timestamp + "-" + Long.toUnsignedString(sequence + 1);
+    }
+
+    /**
+     * Returns the largest stream id that is strictly before the given id, or null if the given id is {@link #MIN}.
+     */
+    @Nullable
+    static String previous(@NotNull String streamId) {
+        final long timestamp = timestampOf(streamId);
+        final long sequence = sequenceOf(streamId);
+
+        if (sequence != 0) {
+            return timestamp + "-" + Long.toUnsignedString(sequence - 1);
+        } else if (timestamp != 0) {
+            return (timestamp - 1) + "-" + Long.toUnsignedString(-1L);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the smallest stream id that can be created at the given millisecond timestamp.
+     */
+    @NotNull
+    static String firstAt(long timestamp) {
+        return Math.max(0L, timestamp) + "-0";
+    }
+
+    /**
+     * Returns the largest stream id that can be created at the given millisecond timestamp.
+     */
+    @NotNull
+    static String lastAt(long timestamp) {
+        return Math.max(0L, timestamp) + "-" + Long.toUnsignedString(-1L);
+    }
+
+    /**
+     * Returns the smallest packed uid that satisfies the given lower bound.
+     */
+    static long floorOf(@NotNull Range.Bound<String> lowerBound) {
+        return lowerBound.getValue()
+                .map(lower -> {
+                    // bounds such as "ms-18446744073709551615" are above every packable id of their millisecond
+                    if (Long.compareUnsigned(sequenceOf(lower), SEQUENCE_MASK) > 0) {
+                        return (timestampOf(lower) + 1) << SEQUENCE_BITS;
+                    }
+                    final long floor = pack(lower);
+                    return lowerBound.isInclusive() ? floor : floor + 1;
+                })
+                .orElse(0L);
+    }
+
+    /**
+     * Returns the largest packed uid that satisfies the given upper bound.
+     */
+    static long ceilingOf(@NotNull Range.Bound<String> upperBound) {
+        return upperBound.getValue()
+                .map(upper -> {
+                    final long timestamp = timestampOf(upper);
+                    final long sequence = sequenceOf(upper);
+                    if (timestamp > MAX_TIMESTAMP) {
+                        return Long.MAX_VALUE;
+                    }
+                    // bounds such as "ms-18446744073709551615" are above every packable id of their millisecond
+                    if (Long.compareUnsigned(sequence, SEQUENCE_MASK) > 0) {
+                        return (timestamp << SEQUENCE_BITS) | SEQUENCE_MASK;
+                    }
+                    final long ceiling = (timestamp << SEQUENCE_BITS) | sequence;
+                    return upperBound.isInclusive() ? ceiling : ceiling - 1;
+                })
+                .orElse(Long.MAX_VALUE);
+    }
+
+}
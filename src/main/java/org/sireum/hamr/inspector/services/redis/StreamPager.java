@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.sireum.hamr.inspector.services.Session;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.ReactiveStreamOperations;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Reads stream ranges as a sequence of COUNT-limited XRANGE (or XREVRANGE) pages, each resuming after the last id of
+ * the previous page.
+ *
+ * A single XRANGE over a multi-million record range has to be fully serialized by redis and fully buffered by the
+ * client before the first record can be used. Paging keeps both sides' memory proportional to
+ * {@code pageSize * (prefetch + 1)} regardless of the size of the range, and the next page is only requested once
+ * downstream demand reaches it.
+ */
+final class StreamPager {
+
+    private final ReactiveStreamOperations<String, String, String> streamOps;
+
+    private final RedisServiceMetrics metrics;
+
+    private final int pageSize;
+
+    private final int prefetch;
+
+    /**
+     * @param streamOps the stream operations to read pages with
+     * @param metrics the metrics to record the latency and size of each page to
+     * @param pageSize the maximum number of records per page, or a non-positive number to disable paging
+     * @param prefetch the number of pages to request ahead of downstream demand
+     */
+    StreamPager(ReactiveStreamOperations<String, String, String> streamOps, RedisServiceMetrics metrics, int pageSize, int prefetch) {
+        this.streamOps = streamOps;
+        this.metrics = metrics;
+        this.pageSize = pageSize;
+        this.prefetch = Math.max(1, prefetch);
+    }
+
+    @NotNull
+    Flux<MapRecord<String, String, String>> range(@NotNull Session session, @NotNull Range<String> range) {
+        return range(session.getName() + "-stream", range);
+    }
+
+    @NotNull
+    Flux<MapRecord<String, String, String>> reverseRange(@NotNull Session session, @NotNull Range<String> range) {
+        return reverseRange(session.getName() + "-stream", range);
+    }
+
+    /**
+     * Reads a range of any stream, such as an index stream of a session.
+     */
+    @NotNull
+    Flux<MapRecord<String, String, String>> range(@NotNull String key, @NotNull Range<String> range) {
+        if (pageSize <= 0) {
+            return timed(false, streamOps.range(key, range));
+        }
+        return pages(key, range, false).flatMapIterable(Function.identity(), prefetch);
+    }
+
+    /**
+     * Reads a range of any stream, such as an index stream of a session.
+     */
+    @NotNull
+    Flux<MapRecord<String, String, String>> reverseRange(@NotNull String key, @NotNull Range<String> range) {
+        if (pageSize <= 0) {
+            return timed(true, streamOps.reverseRange(key, range));
+        }
+        return pages(key, range, true).flatMapIterable(Function.identity(), prefetch);
+    }
+
+    /**
+     * Reads pages one after another, each resuming from a cursor advanced by the previous page. Pages are read by
+     * repeating a single deferred read rather than by nesting a new flux per page, so a range of any length is read by
+     * a chain of operators of constant depth.
+     */
+    private Flux<List<MapRecord<String, String, String>>> pages(String key, Range<String> range, boolean reverse) {
+        final Limit limit = Limit.limit().count(pageSize);
+
+        return Flux.defer(() -> {
+            // the range that remains to be read, or null once the end of the range has been reached
+            final AtomicReference<Range<String>> remaining = new AtomicReference<>(range);
+
+            final Mono<List<MapRecord<String, String, String>>> nextPage = Mono.defer(() -> {
+                final Range<String> current = remaining.get();
+                final Flux<MapRecord<String, String, String>> page = reverse
+                        ? streamOps.reverseRange(key, current, limit)
+                        : streamOps.range(key, current, limit);
+
+                return timed(reverse, page.collectList())
+                        .doOnNext(records -> remaining.set(remainderOf(current, records, reverse)));
+            });
+
+            return nextPage.repeat(() -> remaining.get() != null).filter(records -> !records.isEmpty());
+        });
+    }
+
+    /**
+     * Returns the part of a range that remains after reading a page of it, or null if nothing remains.
+     */
+    @Nullable
+    private Range<String> remainderOf(Range<String> range, List<MapRecord<String, String, String>> records, boolean reverse) {
+        if (records.size() < pageSize) {
+            // a partial page means the end of the range has been reached
+            return null;
+        }
+
+        final String last = records.get(records.size() - 1).getId().getValue();
+        if (reverse) {
+            final String previous = StreamIds.previous(last);
+            return previous == null ? null : Range.of(range.getLowerBound(), Range.Bound.inclusive(previous));
+        } else {
+            return Range.of(Range.Bound.inclusive(StreamIds.next(last)), range.getUpperBound());
+        }
+    }
+
+    private Flux<MapRecord<String, String, String>> timed(boolean reverse, Flux<MapRecord<String, String, String>> range) {
+        final Timer latency = metrics.rangeLatency(reverse);
+        final DistributionSummary records = metrics.rangeRecords();
+
+        return Flux.defer(() -> {
+            final long start = System.nanoTime();
+            final AtomicLong count = new AtomicLong();
+            return range.doOnNext(record -> count.incrementAndGet()).doOnComplete(() -> {
+                latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                records.record(count.get());
+            });
+        });
+    }
+
+    private <T> Mono<List<T>> timed(boolean reverse, Mono<List<T>> page) {
+        final Timer latency = metrics.rangeLatency(reverse);
+        final DistributionSummary records = metrics.rangeRecords();
+
+        return Mono.defer(() -> {
+            final long start = System.nanoTime();
+            return page.doOnNext(list -> {
+                latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                records.record(list.size());
+            });
+        });
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.data.redis.connection.ReactiveRedisConnection;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.stream.ByteBufferRecord;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import reactor.core.publisher.Flux;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Follows the tail of a stream with blocking XREADs on a dedicated connection.
+ *
+ * The COUNT of each XREAD adapts to the rate records arrive at: a full batch means records arrived faster than they
+ * were read, so the next XREAD reads twice as many, while a mostly empty batch halves it. Bursts are therefore read
+ * in few large round trips, while quiet streams don't pay for large reply buffers.
+ */
+@Slf4j
+final class StreamTailer {
+
+    static final int MIN_COUNT = 16;
+
+    private final ReactiveRedisConnectionFactory connectionFactory;
+
+    private final RedisServiceMetrics metrics;
+
+    private final Duration pollTimeout;
+
+    private final int maxCount;
+
+    StreamTailer(ReactiveRedisConnectionFactory connectionFactory, RedisServiceMetrics metrics, Duration pollTimeout, int maxCount) {
+        this.connectionFactory = connectionFactory;
+        this.metrics = metrics;
+        this.pollTimeout = pollTimeout;
+        this.maxCount = Math.max(MIN_COUNT, maxCount);
+    }
+
+    /**
+     * Reads every record added to the stream after the given id, until cancelled.
+     *
+     * @param key the key of the stream
+     * @param fromId the id to read after (exclusive)
+     * @return an infinite flux of the records added after the given id
+     */
+    @NotNull
+    Flux<MapRecord<String, String, String>> tail(@NotNull String key, @NotNull String fromId) {
+        final ByteBuffer rawKey = StandardCharsets.UTF_8.encode(key);
+        final Timer latency = metrics.liveReadLatency();
+        final DistributionSummary batches = metrics.liveReadRecords();
+
+        // a blocking XREAD holds its connection until it returns, so each tail gets its own connection instead of
+        // stalling every other command on the shared one
+        return Flux.using(connectionFactory::getReactiveConnection, connection -> {
+            final AtomicReference<String> last = new AtomicReference<>(fromId);
+            final AtomicInteger count = new AtomicInteger(MIN_COUNT);
+
+            return Flux.defer(() -> {
+                final int requested = count.get();
+                final StreamReadOptions options = StreamReadOptions.empty().count(requested).block(pollTimeout);
+                final long start = System.nanoTime();
+                final AtomicInteger received = new AtomicInteger();
+
+                return read(connection, options, StreamOffset.create(rawKey.duplicate(), ReadOffset.from(last.get())))
+                        .map(record -> decode(key, record))
+                        .doOnNext(record -> {
+                            last.set(record.getId().getValue());
+                            received.incrementAndGet();
+                        })
+                        .doOnComplete(() -> {
+                            latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                            batches.record(received.get());
+                            count.set(adapt(requested, received.get()));
+                        });
+            }).repeat();
+        }, ReactiveRedisConnection::close);
+    }
+
+    private int adapt(int requested, int received) {
+        if (received >= requested) {
+            return Math.min(maxCount, requested * 2);
+        } else if (received < requested / 4) {
+            return Math.max(MIN_COUNT, requested / 2);
+        }
+        return requested;
+    }
+
+    private static Flux<ByteBufferRecord> read(ReactiveRedisConnection connection, StreamReadOptions options,
+                                               StreamOffset<ByteBuffer> offset) {
+        return connection.streamCommands().xRead(options, offset);
+    }
+
+    private static MapRecord<String, String, String> decode(String key, ByteBufferRecord record) {
+        final Map<String, String> fields = new LinkedHashMap<>(record.getValue().size() * 2);
+        for (Map.Entry<ByteBuffer, ByteBuffer> field : record.getValue().entrySet()) {
+            fields.put(StandardCharsets.UTF_8.decode(field.getKey().duplicate()).toString(),
+                    StandardCharsets.UTF_8.decode(field.getValue().duplicate()).toString());
+        }
+        return MapRecord.create(key, fields).withId(record.getId());
+    }
+
+}
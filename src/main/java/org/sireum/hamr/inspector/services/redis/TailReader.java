@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the newest records of a stream together with the length of the stream, atomically.
+ *
+ * Reading both in one script guarantees that the length counts exactly the records up to the newest one read, so
+ * forward ordinals (a record's zero-based position from the start of the stream) can be derived from it even while
+ * records are being added.
+ */
+final class TailReader {
+
+    /**
+     * Returns a flat array (to avoid relying on how nested replies are deserialized) of the stream's length, followed
+     * by each record's id, field count and alternating field keys and values, newest record first.
+     */
+    private static final RedisScript<List<Object>> SCRIPT = multiBulkScript(
+            "local out = { tostring(redis.call('XLEN', KEYS[1])) }",
+            "for _, record in ipairs(redis.call('XREVRANGE', KEYS[1], '+', '-', 'COUNT', ARGV[1])) do",
+            "  out[#out + 1] = record[1]",
+            "  out[#out + 1] = tostring(#record[2] / 2)",
+            "  for _, value in ipairs(record[2]) do",
+            "    out[#out + 1] = value",
+            "  end",
+            "end",
+            "return out");
+
+    /**
+     * The newest records of a stream in forward order, and the length of the stream when they were read.
+     */
+    static final class Tail {
+
+        private final long length;
+
+        private final List<MapRecord<String, String, String>> records;
+
+        private Tail(long length, List<MapRecord<String, String, String>> records) {
+            this.length = length;
+            this.records = records;
+        }
+
+        long length() {
+            return length;
+        }
+
+        /**
+         * @return the records in forward order, so the ordinal of record i is {@code length - records.size() + i}
+         */
+        @NotNull
+        List<MapRecord<String, String, String>> records() {
+            return records;
+        }
+    }
+
+    private final ReactiveRedisTemplate<String, String> template;
+
+    TailReader(ReactiveRedisTemplate<String, String> template) {
+        this.template = template;
+    }
+
+    @NotNull
+    Mono<Tail> read(@NotNull String key, int count) {
+        return template.execute(SCRIPT, List.of(key), List.of(Integer.toString(count)))
+                .cast(Object.class)
+                .flatMapIterable(TailReader::flatten)
+                .collectList()
+                .map(values -> parse(key, values));
+    }
+
+    /**
+     * Creates a script whose reply is a multi-bulk (array) reply, to be read with {@link #flatten(Object)}.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static RedisScript<List<Object>> multiBulkScript(String... lines) {
+        return (RedisScript) RedisScript.of(String.join("\n", lines), List.class);
+    }
+
+    /**
+     * Depending on the driver, a multi-bulk script reply is emitted either as a single list or element by element.
+     */
+    static List<String> flatten(Object reply) {
+        if (reply instanceof List) {
+            final List<String> values = new ArrayList<>(((List<?>) reply).size());
+            for (Object value : (List<?>) reply) {
+                values.add(String.valueOf(value));
+            }
+            return values;
+        }
+        return List.of(String.valueOf(reply));
+    }
+
+    private static Tail parse(String key, List<String> values) {
+        final long length = Long.parseLong(values.get(0));
+        final List<MapRecord<String, String, String>> records = parseRecords(key, values, 1);
+
+        Collections.reverse(records);
+        return new Tail(length, records);
+    }
+
+    /**
+     * Parses the records of a flat script reply, written as each record's id, field count and alternating field keys
+     * and values.
+     *
+     * @param key the key of the stream the records were read from
+     * @param values the flattened script reply
+     * @param from the index of the first record's id in the reply
+     * @return the records in the order they appear in the reply
+     */
+    static List<MapRecord<String, String, String>> parseRecords(String key, List<String> values, int from) {
+        final List<MapRecord<String, String, String>> records = new ArrayList<>();
+
+        int i = from;
+        while (i < values.size()) {
+            final String id = values.get(i++);
+            final int fields = Integer.parseInt(values.get(i++));
+            final Map<String, String> value = new LinkedHashMap<>(fields * 2);
+            for (int field = 0; field < fields; field++) {
+                value.put(values.get(i++), values.get(i++));
+            }
+            records.add(MapRecord.create(key, value).withId(RecordId.of(id)));
+        }
+        return records;
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Counts messages into fixed-width time windows. Windows that changed since the last {@link #drain()} are tracked, so
+ * a live aggregate only re-emits the windows that new messages fell into.
+ *
+ * Not thread-safe, each aggregate owns its accumulator.
+ */
+final class WindowAccumulator {
+
+    private final long widthMillis;
+
+    private final MsgGrouping grouping;
+
+    /**
+     * Counts per window index (the window's start divided by its width), per group key.
+     */
+    private final NavigableMap<Long, Map<Integer, long[]>> windows = new TreeMap<>();
+
+    private final NavigableSet<Long> changed = new TreeSet<>();
+
+    WindowAccumulator(long widthMillis, MsgGrouping grouping) {
+        this.widthMillis = widthMillis;
+        this.grouping = grouping;
+    }
+
+    void add(LazyMsg header) {
+        final long index = Math.floorDiv(header.timestamp(), widthMillis);
+        windows.computeIfAbsent(index, any -> new HashMap<>())
+                .computeIfAbsent(grouping.keyOf(header), any -> new long[1])[0]++;
+        changed.add(index);
+    }
+
+    /**
+     * Adds the counts of a window whose width evenly divides the width of this accumulator's windows.
+     */
+    void add(WindowCounts finer) {
+        final long index = Math.floorDiv(finer.startMillis(), widthMillis);
+        final Map<Integer, long[]> window = windows.computeIfAbsent(index, any -> new HashMap<>());
+        for (Map.Entry<Integer, Long> entry : finer.counts().entrySet()) {
+            window.computeIfAbsent(entry.getKey(), any -> new long[1])[0] += entry.getValue();
+        }
+        changed.add(index);
+    }
+
+    /**
+     * @return a snapshot of every window that changed since the last call, in time order
+     */
+    List<WindowCounts> drain() {
+        final List<WindowCounts> drained = new ArrayList<>(changed.size());
+        for (long index : changed) {
+            final Map<Integer, long[]> window = windows.get(index);
+            final Map<Integer, Long> counts = new HashMap<>(window.size() * 2);
+            for (Map.Entry<Integer, long[]> entry : window.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue()[0]);
+            }
+            drained.add(new WindowCounts(index * widthMillis, widthMillis, counts));
+        }
+        changed.clear();
+        return drained;
+    }
+}
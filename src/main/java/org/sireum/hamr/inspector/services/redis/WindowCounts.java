@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The number of messages of a session within one time window, grouped by port (see {@link MsgGrouping}).
+ * Windows are aligned to multiples of their width from the start of the session.
+ */
+public final class WindowCounts {
+
+    private final long startMillis;
+
+    private final long widthMillis;
+
+    private final Map<Integer, Long> counts;
+
+    private final long total;
+
+    WindowCounts(long startMillis, long widthMillis, Map<Integer, Long> counts) {
+        this.startMillis = startMillis;
+        this.widthMillis = widthMillis;
+        this.counts = Collections.unmodifiableMap(counts);
+
+        long sum = 0;
+        for (long count : counts.values()) {
+            sum += count;
+        }
+        this.total = sum;
+    }
+
+    /**
+     * @return the (inclusive) start of this window relative to the start of the session
+     */
+    @NotNull
+    public Duration start() {
+        return Duration.ofMillis(startMillis);
+    }
+
+    /**
+     * @return the (exclusive) end of this window relative to the start of the session
+     */
+    @NotNull
+    public Duration end() {
+        return Duration.ofMillis(startMillis + widthMillis);
+    }
+
+    /**
+     * @return the number of messages in this window per port id, only containing ports with at least one message
+     */
+    @NotNull
+    public Map<Integer, Long> counts() {
+        return counts;
+    }
+
+    /**
+     * @return the number of messages in this window
+     */
+    public long total() {
+        return total;
+    }
+
+    long startMillis() {
+        return startMillis;
+    }
+
+    long widthMillis() {
+        return widthMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "WindowCounts{start=" + startMillis + "ms, width=" + widthMillis + "ms, counts=" + counts + "}";
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import org.junit.jupiter.api.Test;
+import org.sireum.hamr.inspector.services.Session;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.ReactiveStreamOperations;
+import reactor.core.publisher.Flux;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class OrdinalIndexTest {
+
+    /**
+     * Enough records for a few checkpoints past the first extension page, and a few records past the last one.
+     */
+    private static final int RECORDS = 5 * OrdinalIndex.CHECKPOINT_INTERVAL + 10;
+
+    private final Session session = new Session("1");
+
+    @Test
+    void seeksSeveralPagesIntoAFreshIndex() {
+        final OrdinalIndex index = new OrdinalIndex(streamOfRecords(RECORDS));
+
+        final long ordinal = 3L * OrdinalIndex.CHECKPOINT_INTERVAL + 5;
+        assertEquals(uidOf(3L * OrdinalIndex.CHECKPOINT_INTERVAL), index.checkpoint(session, ordinal).block());
+    }
+
+    @Test
+    void seeksBackwardsAndForwardsAfterExtending() {
+        final OrdinalIndex index = new OrdinalIndex(streamOfRecords(RECORDS));
+
+        assertEquals(uidOf(5L * OrdinalIndex.CHECKPOINT_INTERVAL), index.checkpoint(session, RECORDS - 1).block());
+        assertEquals(uidOf(0), index.checkpoint(session, 7).block());
+        assertEquals(uidOf(OrdinalIndex.CHECKPOINT_INTERVAL), index.checkpoint(session, OrdinalIndex.CHECKPOINT_INTERVAL).block());
+    }
+
+    @Test
+    void isEmptyPastTheEndOfTheStream() {
+        final OrdinalIndex index = new OrdinalIndex(streamOfRecords(RECORDS));
+
+        assertNull(index.checkpoint(session, 6L * OrdinalIndex.CHECKPOINT_INTERVAL).block());
+    }
+
+    /**
+     * The record at ordinal n has the id "(n + 1)-0".
+     */
+    private static long uidOf(long ordinal) {
+        return StreamIds.pack((ordinal + 1) + "-0");
+    }
+
+    /**
+     * A stand-in for a stream of the given number of records that only supports XRANGE with an inclusive or
+     * unbounded lower bound.
+     */
+    @SuppressWarnings("unchecked")
+    private static ReactiveStreamOperations<String, String, String> streamOfRecords(int records) {
+        return (ReactiveStreamOperations<String, String, String>) Proxy.newProxyInstance(
+                OrdinalIndexTest.class.getClassLoader(), new Class<?>[]{ReactiveStreamOperations.class},
+                (proxy, method, args) -> {
+                    if (!method.getName().equals("range") || args.length != 3) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    final String key = (String) args[0];
+                    final Range.Bound<String> lowerBound = ((Range<String>) args[1]).getLowerBound();
+                    final Limit limit = (Limit) args[2];
+
+                    // the first record at or after the lower bound, since every record has sequence 0
+                    final long from = lowerBound.getValue()
+                            .map(id -> StreamIds.sequenceOf(id) == 0 ? StreamIds.timestampOf(id) : StreamIds.timestampOf(id) + 1)
+                            .orElse(1L);
+                    return Flux.range((int) from, Math.max(0, records + 1 - (int) from))
+                            .take(limit.getCount())
+                            .map(n -> MapRecord.create(key, Map.of("n", Integer.toString(n))).withId(RecordId.of(n + "-0")));
+                });
+    }
+
+}
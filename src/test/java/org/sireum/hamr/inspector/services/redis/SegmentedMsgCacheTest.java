@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import art.DataContent;
+import art.Empty;
+import org.junit.jupiter.api.Test;
+import org.sireum.hamr.inspector.common.Msg;
+import org.sireum.hamr.inspector.services.Session;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentedMsgCacheTest {
+
+    /**
+     * The number of messages put into each segment by these tests.
+     */
+    private static final int SEGMENT_SIZE = 8;
+
+    private static final long SEGMENT_WEIGHT = SEGMENT_SIZE * SegmentedMsgCache.ENTRY_WEIGHT;
+
+    private static final Duration NEVER = Duration.ofHours(1);
+
+    private static final DataContent EMPTY = Empty.apply();
+
+    private final Session session = new Session("1");
+
+    private final Session other = new Session("2");
+
+    @Test
+    void findsMessagesPutInReverseOrder() {
+        final SegmentedMsgCache cache = new SegmentedMsgCache(Long.MAX_VALUE, NEVER);
+
+        final List<Long> uids = uidsOf(4);
+        Collections.reverse(uids);
+        for (long uid : uids) {
+            cache.put(session, uid, msgOf(uid));
+        }
+
+        assertAllCached(cache, session, uids);
+        assertEquals(uids.size() * SegmentedMsgCache.ENTRY_WEIGHT, cache.weight());
+    }
+
+    @Test
+    void findsMessagesPutOutOfOrder() {
+        final SegmentedMsgCache cache = new SegmentedMsgCache(Long.MAX_VALUE, NEVER);
+
+        final List<Long> uids = uidsOf(20);
+        Collections.shuffle(uids, new Random(42));
+        for (long uid : uids) {
+            cache.put(session, uid, msgOf(uid));
+        }
+
+        assertAllCached(cache, session, uids);
+        assertNull(cache.get(session, uidOf(20, 0)));
+        assertNull(cache.get(session, uidOf(0, SEGMENT_SIZE)));
+        assertEquals(uids.size() * SegmentedMsgCache.ENTRY_WEIGHT, cache.weight());
+    }
+
+    @Test
+    void replacingAMessageDoesNotAddWeight() {
+        final SegmentedMsgCache cache = new SegmentedMsgCache(Long.MAX_VALUE, NEVER);
+
+        final long uid = uidOf(0, 0);
+        cache.put(session, uid, msgOf(uid));
+        final Msg replacement = msgOf(uid);
+        cache.put(session, uid, replacement);
+
+        assertSame(replacement, cache.get(session, uid));
+        assertEquals(SegmentedMsgCache.ENTRY_WEIGHT, cache.weight());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedSegmentsToStayWithinItsMaximumWeight() {
+        final long maximumWeight = 4 * SEGMENT_WEIGHT;
+        final SegmentedMsgCache cache = new SegmentedMsgCache(maximumWeight, NEVER);
+
+        for (long uid : uidsOf(10)) {
+            cache.put(session, uid, msgOf(uid));
+            assertTrue(cache.weight() <= maximumWeight, "weight " + cache.weight() + " exceeds " + maximumWeight);
+        }
+
+        // eviction drops whole segments, so the newest segment is complete and the oldest is gone entirely
+        assertAllCached(cache, session, uidsOf(9, 10));
+        for (long uid : uidsOf(0, 1)) {
+            assertNull(cache.get(session, uid));
+        }
+    }
+
+    @Test
+    void evictsFromTheLargestSession() {
+        final long maximumWeight = 6 * SEGMENT_WEIGHT;
+        final SegmentedMsgCache cache = new SegmentedMsgCache(maximumWeight, NEVER);
+
+        final List<Long> small = uidsOf(3);
+        for (long uid : small) {
+            cache.put(other, uid, msgOf(uid));
+        }
+        for (long uid : uidsOf(10)) {
+            cache.put(session, uid, msgOf(uid));
+        }
+
+        assertTrue(cache.weight() <= maximumWeight);
+        assertAllCached(cache, other, small);
+    }
+
+    @Test
+    void evictsWhenTheMaximumWeightIsLowered() {
+        final SegmentedMsgCache cache = new SegmentedMsgCache(Long.MAX_VALUE, NEVER);
+        for (long uid : uidsOf(10)) {
+            cache.put(session, uid, msgOf(uid));
+        }
+
+        cache.setMaximumWeight(2 * SEGMENT_WEIGHT);
+
+        assertEquals(2 * SEGMENT_WEIGHT, cache.weight());
+    }
+
+    @Test
+    void invalidatesOnlyTheGivenSession() {
+        final SegmentedMsgCache cache = new SegmentedMsgCache(Long.MAX_VALUE, NEVER);
+        final List<Long> uids = uidsOf(3);
+        for (long uid : uids) {
+            cache.put(session, uid, msgOf(uid));
+            cache.put(other, uid, msgOf(uid));
+        }
+
+        cache.invalidate(session);
+
+        for (long uid : uids) {
+            assertNull(cache.get(session, uid));
+        }
+        assertAllCached(cache, other, uids);
+        assertEquals(uids.size() * SegmentedMsgCache.ENTRY_WEIGHT, cache.weight());
+
+        // an invalidated session can be cached again
+        final long uid = uids.get(0);
+        cache.put(session, uid, msgOf(uid));
+        assertNotNull(cache.get(session, uid));
+        assertEquals((uids.size() + 1) * SegmentedMsgCache.ENTRY_WEIGHT, cache.weight());
+    }
+
+    @Test
+    void expiresSegmentsThatAreNotAccessed() throws InterruptedException {
+        final SegmentedMsgCache cache = new SegmentedMsgCache(Long.MAX_VALUE, Duration.ofMillis(1));
+        final List<Long> uids = uidsOf(2);
+        for (long uid : uids) {
+            cache.put(session, uid, msgOf(uid));
+        }
+
+        Thread.sleep(20);
+
+        // expired segments are swept by whichever access comes once a sweep is due, here a miss of another session
+        assertNull(cache.get(other, uids.get(0)));
+        assertEquals(0, cache.weight());
+        for (long uid : uids) {
+            assertNull(cache.get(session, uid));
+        }
+    }
+
+    @Test
+    void countsHitsAndMisses() {
+        final SegmentedMsgCache cache = new SegmentedMsgCache(Long.MAX_VALUE, NEVER);
+        final long uid = uidOf(0, 0);
+        cache.put(session, uid, msgOf(uid));
+
+        cache.get(session, uid);
+        cache.get(session, uidOf(0, 1));
+        cache.get(other, uid);
+
+        assertEquals(1, cache.hitCount());
+        assertEquals(2, cache.missCount());
+    }
+
+    private static void assertAllCached(SegmentedMsgCache cache, Session session, List<Long> uids) {
+        for (long uid : uids) {
+            final Msg msg = cache.get(session, uid);
+            assertNotNull(msg, "uid " + uid + " is not cached");
+            assertEquals(uid, msg.uid());
+        }
+    }
+
+    private static List<Long> uidsOf(int segments) {
+        return uidsOf(0, segments);
+    }
+
+    /**
+     * @return every uid of the segments in [from, to), in ascending order
+     */
+    private static List<Long> uidsOf(int from, int to) {
+        final List<Long> uids = new ArrayList<>();
+        for (int segment = from; segment < to; segment++) {
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                uids.add(uidOf(segment, i));
+            }
+        }
+        return uids;
+    }
+
+    private static long uidOf(int segment, int index) {
+        return ((long) segment << SegmentedMsgCache.SEGMENT_SHIFT) | index;
+    }
+
+    private static Msg msgOf(long uid) {
+        return new Msg(null, null, null, null, EMPTY, StreamIds.timestampOf(uid), uid);
+    }
+
+}
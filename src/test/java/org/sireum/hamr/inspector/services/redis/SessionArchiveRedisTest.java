@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SessionArchiveRedisTest {
+
+    private static final String KEY = "1-stream";
+
+    private static final long START_TIME = 1589000000000L;
+
+    private static final long STOP_TIME = 1589000060000L;
+
+    private final List<MapRecord<String, String, String>> records = List.of(
+            record("1589000000001-0", "timestamp", "1589000000001", "src", "3", "dst", "4", "data", "{\"a\":1}"),
+            record("1589000000001-1", "timestamp", "1589000000001", "src", "4", "dst", "3", "data", "ünïcödé ✓"),
+            record("1589000000002-0", "data", ""),
+            record("1589000060000-0", "stop", "1589000060000"));
+
+    @Test
+    void roundTripsUncompressedArchives() throws IOException {
+        final byte[] archive = write(records, String.valueOf(STOP_TIME), false);
+
+        assertHeader(archive, 0);
+        final SessionArchiveRedis.ArchiveReader reader = new SessionArchiveRedis.ArchiveReader(new ByteArrayInputStream(archive));
+        assertEquals(START_TIME, reader.startTime);
+        assertEquals(STOP_TIME, (long) reader.stopTime);
+        assertEquals(records, readAll(reader));
+    }
+
+    @Test
+    void roundTripsCompressedArchives() throws IOException {
+        final byte[] archive = write(records, String.valueOf(STOP_TIME), true);
+
+        assertHeader(archive, SessionArchiveRedis.FLAG_GZIP);
+        // the body starts with the GZIP magic number
+        assertEquals((byte) 0x1f, archive[6]);
+        assertEquals((byte) 0x8b, archive[7]);
+
+        final SessionArchiveRedis.ArchiveReader reader = new SessionArchiveRedis.ArchiveReader(new ByteArrayInputStream(archive));
+        assertEquals(START_TIME, reader.startTime);
+        assertEquals(STOP_TIME, (long) reader.stopTime);
+        assertEquals(records, readAll(reader));
+    }
+
+    @Test
+    void roundTripsSessionsWithoutStopTimeOrRecords() throws IOException {
+        final byte[] archive = write(List.of(), null, true);
+
+        final SessionArchiveRedis.ArchiveReader reader = new SessionArchiveRedis.ArchiveReader(new ByteArrayInputStream(archive));
+        assertEquals(START_TIME, reader.startTime);
+        assertNull(reader.stopTime);
+        assertEquals(List.of(), readAll(reader));
+    }
+
+    @Test
+    void rejectsArchivesWithoutMagicNumber() throws IOException {
+        final byte[] archive = write(records, null, false);
+        archive[0] ^= 1;
+
+        final IOException e = assertThrows(IOException.class,
+                () -> new SessionArchiveRedis.ArchiveReader(new ByteArrayInputStream(archive)));
+        assertEquals("Not a session archive", e.getMessage());
+    }
+
+    @Test
+    void rejectsUnsupportedVersions() throws IOException {
+        final byte[] archive = write(records, null, false);
+        archive[4] = SessionArchiveRedis.VERSION + 1;
+
+        final IOException e = assertThrows(IOException.class,
+                () -> new SessionArchiveRedis.ArchiveReader(new ByteArrayInputStream(archive)));
+        assertEquals("Unsupported session archive version " + (SessionArchiveRedis.VERSION + 1), e.getMessage());
+    }
+
+    @Test
+    void rejectsTruncatedArchives() throws IOException {
+        final byte[] archive = write(records, String.valueOf(STOP_TIME), false);
+
+        // cut within the records, and cut only the trailing record count
+        for (int length : new int[]{archive.length / 2, archive.length - Long.BYTES}) {
+            assertThrows(UncheckedIOException.class, () -> readAll(Arrays.copyOf(archive, length)), "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsTruncatedCompressedArchives() throws IOException {
+        final byte[] archive = write(records, String.valueOf(STOP_TIME), true);
+
+        assertThrows(UncheckedIOException.class, () -> readAll(Arrays.copyOf(archive, archive.length / 2)));
+    }
+
+    @Test
+    void rejectsArchivesWithTheWrongRecordCount() throws IOException {
+        final byte[] archive = write(records, null, false);
+        archive[archive.length - 1]++;
+
+        assertThrows(UncheckedIOException.class, () -> readAll(archive));
+    }
+
+    @Test
+    void rejectsCorruptStringLengths() throws IOException {
+        final byte[] archive = write(records, null, false);
+        // the length of the first record's id follows the header, the body's times and the record's field count
+        final int idLength = 6 + Long.BYTES + 1 + Long.BYTES + Integer.BYTES;
+        archive[idLength] = (byte) 0x80;
+
+        final SessionArchiveRedis.ArchiveReader reader = new SessionArchiveRedis.ArchiveReader(new ByteArrayInputStream(archive));
+        assertThrows(UncheckedIOException.class, () -> reader.readRecord(KEY));
+    }
+
+    private static void assertHeader(byte[] archive, int flags) throws IOException {
+        final DataInputStream header = new DataInputStream(new ByteArrayInputStream(archive));
+        assertEquals(SessionArchiveRedis.MAGIC, header.readInt());
+        assertEquals(SessionArchiveRedis.VERSION, header.readByte());
+        assertEquals(flags, header.readByte());
+        assertNotEquals(-1, header.read());
+    }
+
+    private static byte[] write(List<MapRecord<String, String, String>> records, String stopTime, boolean compress) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final SessionArchiveRedis.ArchiveWriter writer = new SessionArchiveRedis.ArchiveWriter(out, compress);
+        writer.writeHeader(START_TIME, stopTime);
+        records.forEach(writer::writeRecord);
+        assertEquals(records.size(), writer.finish());
+        writer.release();
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads an archive, reporting a malformed header like any other malformed part of the archive.
+     */
+    private static List<MapRecord<String, String, String>> readAll(byte[] archive) {
+        try {
+            return readAll(new SessionArchiveRedis.ArchiveReader(new ByteArrayInputStream(archive)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<MapRecord<String, String, String>> readAll(SessionArchiveRedis.ArchiveReader reader) {
+        final List<MapRecord<String, String, String>> read = new ArrayList<>();
+        for (MapRecord<String, String, String> record = reader.readRecord(KEY); record != null; record = reader.readRecord(KEY)) {
+            read.add(record);
+        }
+        reader.verify();
+        return read;
+    }
+
+    private static MapRecord<String, String, String> record(String id, String... fields) {
+        final Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < fields.length; i += 2) {
+            values.put(fields[i], fields[i + 1]);
+        }
+        return MapRecord.create(KEY, values).withId(RecordId.of(id));
+    }
+
+}
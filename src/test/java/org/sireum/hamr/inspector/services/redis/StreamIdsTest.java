@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020, Matthew Weis, Kansas State University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sireum.hamr.inspector.services.redis;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Range;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamIdsTest {
+
+    /**
+     * The largest sequence that fits the 21 sequence bits of a packed uid.
+     */
+    private static final long MAX_SEQUENCE = (1L << 21) - 1;
+
+    /**
+     * The largest sequence redis allows, which is also the sequence of {@link StreamIds#lastAt(long)}.
+     */
+    private static final String MAX_UNSIGNED = Long.toUnsignedString(-1L);
+
+    @Test
+    void packsTimestampAndSequence() {
+        assertEquals(0, StreamIds.pack(StreamIds.MIN));
+        assertEquals((5L << 21) | 3, StreamIds.pack("5-3"));
+        assertEquals(1589000000000L, StreamIds.timestampOf(StreamIds.pack("1589000000000-7")));
+        assertEquals("1589000000000-7", StreamIds.unpack(StreamIds.pack("1589000000000-7")));
+    }
+
+    @Test
+    void packedIdsOrderLikeStreamIds() {
+        assertTrue(StreamIds.pack("5-" + MAX_SEQUENCE) < StreamIds.pack("6-0"));
+        assertEquals(StreamIds.pack("6-0"), StreamIds.pack("5-" + MAX_SEQUENCE) + 1);
+    }
+
+    @Test
+    void rejectsSequencesThatOverflowTheSequenceBits() {
+        assertThrows(NumberFormatException.class, () -> StreamIds.pack("5-" + (MAX_SEQUENCE + 1)));
+        assertThrows(NumberFormatException.class, () -> StreamIds.pack("5-" + MAX_UNSIGNED));
+        assertThrows(NumberFormatException.class, () -> StreamIds.pack((Long.MAX_VALUE >>> 21) + 1 + "-0"));
+    }
+
+    @Test
+    void nextCarriesIntoTheTimestamp() {
+        assertEquals("5-4", StreamIds.next("5-3"));
+        assertEquals("5-" + (MAX_SEQUENCE + 1), StreamIds.next("5-" + MAX_SEQUENCE));
+        assertEquals("6-0", StreamIds.next("5-" + MAX_UNSIGNED));
+        assertEquals("0-1", StreamIds.next(StreamIds.MIN));
+    }
+
+    @Test
+    void previousBorrowsFromTheTimestamp() {
+        assertEquals("5-2", StreamIds.previous("5-3"));
+        assertEquals("4-" + MAX_UNSIGNED, StreamIds.previous("5-0"));
+        assertNull(StreamIds.previous(StreamIds.MIN));
+        assertEquals("5-0", StreamIds.next(StreamIds.previous("5-0")));
+    }
+
+    @Test
+    void firstAndLastIdsOfAMillisecond() {
+        assertEquals("7-0", StreamIds.firstAt(7));
+        assertEquals("7-" + MAX_UNSIGNED, StreamIds.lastAt(7));
+        assertEquals(StreamIds.MIN, StreamIds.firstAt(-1));
+        assertEquals("0-" + MAX_UNSIGNED, StreamIds.lastAt(-1));
+        assertEquals(StreamIds.firstAt(8), StreamIds.next(StreamIds.lastAt(7)));
+    }
+
+    @Test
+    void floorOfLowerBounds() {
+        assertEquals(0, StreamIds.floorOf(Range.Bound.unbounded()));
+        assertEquals(0, StreamIds.floorOf(Range.Bound.inclusive(StreamIds.MIN)));
+        assertEquals(1, StreamIds.floorOf(Range.Bound.exclusive(StreamIds.MIN)));
+
+        assertEquals(StreamIds.pack("7-0"), StreamIds.floorOf(Range.Bound.inclusive(StreamIds.firstAt(7))));
+        assertEquals(StreamIds.pack("8-0"), StreamIds.floorOf(Range.Bound.exclusive("7-" + MAX_SEQUENCE)));
+
+        // no packable id of a millisecond is above its last id, so the floor is the first id of the next millisecond
+        assertEquals(StreamIds.pack("8-0"), StreamIds.floorOf(Range.Bound.inclusive(StreamIds.lastAt(7))));
+        assertEquals(StreamIds.pack("8-0"), StreamIds.floorOf(Range.Bound.exclusive(StreamIds.lastAt(7))));
+    }
+
+    @Test
+    void ceilingOfUpperBounds() {
+        assertEquals(Long.MAX_VALUE, StreamIds.ceilingOf(Range.Bound.unbounded()));
+        assertEquals(0, StreamIds.ceilingOf(Range.Bound.inclusive(StreamIds.MIN)));
+
+        assertEquals(StreamIds.pack("7-0"), StreamIds.ceilingOf(Range.Bound.inclusive(StreamIds.firstAt(7))));
+        assertEquals(StreamIds.pack("6-" + MAX_SEQUENCE), StreamIds.ceilingOf(Range.Bound.exclusive(StreamIds.firstAt(7))));
+
+        assertEquals(StreamIds.pack("7-" + MAX_SEQUENCE), StreamIds.ceilingOf(Range.Bound.inclusive(StreamIds.lastAt(7))));
+        assertEquals(StreamIds.pack("7-" + MAX_SEQUENCE), StreamIds.ceilingOf(Range.Bound.inclusive(StreamIds.previous("8-0"))));
+        assertEquals(Long.MAX_VALUE, StreamIds.ceilingOf(Range.Bound.inclusive((Long.MAX_VALUE >>> 21) + 1 + "-0")));
+    }
+
+}